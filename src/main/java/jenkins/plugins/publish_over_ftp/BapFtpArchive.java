@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.FilePath;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+/**
+ * Writes the files of a transfer set into one zip or tar archive as they are read, straight into the data connection
+ * of a single STOR.
+ * <p>
+ * Unless the file metadata is kept, every entry gets the time the archive was started and the default permissions, so
+ * the same files always make the same archive.
+ */
+public abstract class BapFtpArchive {
+
+    private final boolean metadata;
+    private final long started = System.currentTimeMillis();
+    private int files;
+    private long bytes;
+
+    BapFtpArchive(final boolean metadata) {
+        this.metadata = metadata;
+    }
+
+    public static boolean isSupported(final String name) {
+        return getFormat(name) != null;
+    }
+
+    static BapFtpArchive open(final String name, final OutputStream data, final boolean metadata) throws IOException {
+        final String format = getFormat(name);
+        if ("zip".equals(format)) return new Zip(data, metadata);
+        if ("tar.gz".equals(format)) return new Tar(new GZIPOutputStream(data), metadata);
+        if ("tar".equals(format)) return new Tar(data, metadata);
+        throw new BapPublisherException(Messages.exception_archiveFormat(name));
+    }
+
+    private static String getFormat(final String name) {
+        final String lower = name.toLowerCase(Locale.ENGLISH);
+        if (lower.endsWith(".zip")) return "zip";
+        if (lower.endsWith(".tar.gz") || lower.endsWith(".tgz")) return "tar.gz";
+        if (lower.endsWith(".tar")) return "tar";
+        return null;
+    }
+
+    int getFiles() {
+        return files;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    void add(final String path, final FilePath filePath, final InputStream content) throws IOException {
+        final long length;
+        final long modified;
+        final int mode;
+        try {
+            length = filePath.length();
+            modified = metadata ? filePath.lastModified() : started;
+            mode = metadata ? filePath.mode() : -1;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        }
+        addEntry(path, length, modified, mode, content);
+        files++;
+        bytes += length;
+    }
+
+    protected abstract void addEntry(String path, long length, long modified, int mode, InputStream content)
+            throws IOException;
+
+    abstract void close() throws IOException;
+
+    private static final class Zip extends BapFtpArchive {
+        private final ZipOutputStream out;
+
+        Zip(final OutputStream data, final boolean metadata) {
+            super(metadata);
+            out = new ZipOutputStream(data);
+        }
+
+        @Override
+        protected void addEntry(
+                final String path, final long length, final long modified, final int mode, final InputStream content)
+                throws IOException {
+            final ZipEntry entry = new ZipEntry(path);
+            entry.setTime(modified);
+            out.putNextEntry(entry);
+            content.transferTo(out);
+            out.closeEntry();
+        }
+
+        @Override
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class Tar extends BapFtpArchive {
+        private static final int REGULAR_FILE = 0100000;
+
+        private final TarArchiveOutputStream out;
+
+        Tar(final OutputStream data, final boolean metadata) {
+            super(metadata);
+            out = new TarArchiveOutputStream(data);
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        }
+
+        @Override
+        protected void addEntry(
+                final String path, final long length, final long modified, final int mode, final InputStream content)
+                throws IOException {
+            final TarArchiveEntry entry = new TarArchiveEntry(path);
+            entry.setSize(length);
+            entry.setModTime(modified);
+            if (mode >= 0) entry.setMode(REGULAR_FILE | mode & 07777);
+            out.putArchiveEntry(entry);
+            content.transferTo(out);
+            out.closeArchiveEntry();
+        }
+
+        @Override
+        void close() throws IOException {
+            out.finish();
+            out.close();
+        }
+    }
+}
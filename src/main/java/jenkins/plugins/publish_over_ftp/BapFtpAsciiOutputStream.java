@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes text to an ASCII data connection, ending every line that ends with a bare LF with CRLF instead, as the stream
+ * that commons-net uses in ASCII mode does.
+ * <p>
+ * That stream handles one byte at a time. This one writes each run of bytes up to a bare LF straight from the buffer it
+ * is given, and only writes a CR of its own in front of the LF, so text that already has CRLF line endings passes
+ * through in a single write.
+ */
+final class BapFtpAsciiOutputStream extends FilterOutputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private boolean lastWasCR;
+
+    BapFtpAsciiOutputStream(final OutputStream data) {
+        super(new BufferedOutputStream(data, BUFFER_SIZE));
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (b == '\n' && !lastWasCR) out.write('\r');
+        out.write(b);
+        lastWasCR = b == '\r';
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length <= 0) return;
+        final int end = offset + length;
+        int start = offset;
+        boolean previousWasCR = lastWasCR;
+        for (int i = offset; i < end; i++) {
+            final byte b = buffer[i];
+            if (b == '\n' && !previousWasCR) {
+                out.write(buffer, start, i - start);
+                out.write('\r');
+                start = i;
+            }
+            previousWasCR = b == '\r';
+        }
+        out.write(buffer, start, end - start);
+        lastWasCR = previousWasCR;
+    }
+}
@@ -40,6 +40,7 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 @SuppressWarnings("PMD.LooseCoupling") // serializable
 public class BapFtpBuilder extends Builder {
@@ -62,6 +63,15 @@ public class BapFtpBuilder extends Builder {
         return delegate;
     }
 
+    public int getParallelPublishers() {
+        return delegate.getParallelPublishers();
+    }
+
+    @DataBoundSetter
+    public void setParallelPublishers(final int parallelPublishers) {
+        delegate.setParallelPublishers(parallelPublishers);
+    }
+
     @Override
     public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
             throws InterruptedException, IOException {
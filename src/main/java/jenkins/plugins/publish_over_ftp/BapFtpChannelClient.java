@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.SocketFactory;
+import jenkins.util.Timer;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPCmd;
+
+/**
+ * FTP client that stores a local file by handing its channel to the data connection, so that the bytes go from the
+ * file to the socket with sendfile instead of being copied through a buffer on the heap.
+ * <p>
+ * Only the data connections of these stores are opened over socket channels; the control connection and every other
+ * data connection are opened by the socket factory of the client as before. In active mode the server connects to a
+ * plain socket, and the file is written to its stream instead.
+ * <p>
+ * The socket timeout only applies to reads, so a store could wait for ever on a server that stops reading. The file is
+ * sent a chunk at a time instead, and a watchdog closes the data connection when no chunk has been sent for the data
+ * timeout.
+ */
+class BapFtpChannelClient extends FTPClient {
+
+    private static final SocketFactory CHANNEL_SOCKET_FACTORY = new ChannelSocketFactory();
+    private static final long CHUNK_SIZE = 1024 * 1024;
+
+    private int dataTimeout;
+
+    @Override
+    public void setDataTimeout(final int timeout) {
+        super.setDataTimeout(timeout);
+        dataTimeout = timeout;
+    }
+
+    /**
+     * Stores the channel from the start to its size, which must be in binary mode.
+     */
+    boolean storeFile(final String remote, final FileChannel source) throws IOException {
+        final Socket socket = openStoreConnection(remote);
+        if (socket == null) return false;
+        try (Socket data = socket) {
+            final WritableByteChannel target =
+                    data.getChannel() == null ? Channels.newChannel(data.getOutputStream()) : data.getChannel();
+            final Watchdog watchdog = dataTimeout > 0 ? new Watchdog(data, dataTimeout) : null;
+            try {
+                final long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    final long sent = source.transferTo(position, Math.min(CHUNK_SIZE, size - position), target);
+                    if (sent <= 0) throw new EOFException();
+                    position += sent;
+                    if (watchdog != null) watchdog.progressed();
+                }
+            } catch (IOException ioe) {
+                if (watchdog == null || !watchdog.hasTimedOut()) throw ioe;
+                final SocketTimeoutException timeout =
+                        new SocketTimeoutException(Messages.exception_dataTimeout(dataTimeout));
+                timeout.initCause(ioe);
+                throw timeout;
+            } finally {
+                if (watchdog != null) watchdog.cancel();
+            }
+        }
+        return completePendingCommand();
+    }
+
+    Socket openStoreConnection(final String remote) throws IOException {
+        final SocketFactory socketFactory = _socketFactory_;
+        _socketFactory_ = CHANNEL_SOCKET_FACTORY;
+        try {
+            return _openDataConnection_(FTPCmd.STOR, remote);
+        } finally {
+            _socketFactory_ = socketFactory;
+        }
+    }
+
+    /**
+     * Closes the socket once it has gone for the timeout without progress, which fails the write that is blocked on it.
+     */
+    private static final class Watchdog implements Runnable {
+        private final Socket socket;
+        private final long timeout;
+        private final ScheduledFuture<?> check;
+        private volatile long progressed = System.nanoTime();
+        private volatile boolean timedOut;
+
+        Watchdog(final Socket socket, final int timeout) {
+            this.socket = socket;
+            this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+            final long period = Math.max(timeout / 4, 1);
+            check = Timer.get().scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        void progressed() {
+            progressed = System.nanoTime();
+        }
+
+        boolean hasTimedOut() {
+            return timedOut;
+        }
+
+        void cancel() {
+            check.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (timedOut || System.nanoTime() - progressed < timeout) return;
+            timedOut = true;
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // the write that is blocked fails all the same
+            }
+        }
+    }
+
+    private static final class ChannelSocketFactory extends SocketFactory {
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return SocketChannel.open().socket();
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return connect(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(
+                final String host, final int port, final InetAddress localAddress, final int localPort)
+                throws IOException {
+            return connect(new InetSocketAddress(host, port), new InetSocketAddress(localAddress, localPort));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port) throws IOException {
+            return connect(new InetSocketAddress(address, port), null);
+        }
+
+        @Override
+        public Socket createSocket(
+                final InetAddress address, final int port, final InetAddress localAddress, final int localPort)
+                throws IOException {
+            return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+        }
+
+        private Socket connect(final InetSocketAddress remote, final InetSocketAddress local) throws IOException {
+            final Socket socket = createSocket();
+            try {
+                if (local != null) socket.bind(local);
+                socket.connect(remote);
+            } catch (IOException ioe) {
+                socket.close();
+                throw ioe;
+            }
+            return socket;
+        }
+    }
+}
@@ -25,8 +25,38 @@
 package jenkins.plugins.publish_over_ftp;
 
 import hudson.FilePath;
+import hudson.Util;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPDefaultClient;
 import jenkins.plugins.publish_over.BapPublisherException;
@@ -36,14 +66,63 @@ import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPListParseEngine;
+import org.apache.commons.net.ftp.FTPReply;
 
 public class BapFtpClient extends BPDefaultClient<BapFtpTransfer> {
 
     private static final Log LOG = LogFactory.getLog(BapFtpClient.class);
 
+    static final int LIST_PAGE_SIZE = 1000;
+
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final String BACKUP_SUFFIX = ".previous-";
+    private static final String DELETING_SUFFIX = ".deleting-";
+
+    private static final String PARTIAL_UPLOADS_KEY = BapFtpClient.class.getName() + ".partialUploads";
+
     private BPBuildInfo buildInfo;
     private FTPClient ftpClient;
     private boolean disableMakeNestedDirs;
+    private String currentDirectory;
+    private String workingDirectory;
+    private final Set<String> knownDirectories = new HashSet<>();
+    private BapFtpParallelUploader parallelUploader;
+    private BapFtpFanOut fanOut;
+    private BapFtpConcurrentTransfers concurrentTransfers;
+    private BapFtpSegmentedUpload segmentedUpload;
+    private BapFtpConnectionPool connectionPool;
+    private BapFtpConnectionPool.Key connectionPoolKey;
+    private BapFtpCommandCounter commandListener;
+    private final Map<String, Map<String, FTPFile>> remoteListings = new HashMap<>();
+    private int uploadedFiles;
+    private long uploadedBytes;
+    private int skippedFiles;
+    private long skippedBytes;
+    private int journalSkippedFiles;
+    private long journalSkippedBytes;
+    private BapFtpPublishJournal publishJournal;
+    private int attempt;
+    private File uploadManifestFile;
+    private BapFtpUploadManifest uploadManifest;
+    private boolean uploadManifestOpened;
+    private boolean modeZ;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Boolean modeZSupported;
+    private boolean deflating;
+    private boolean transferring;
+    private Boolean asciiFileType;
+    private long deflatedBytes;
+    private long deflatedWireBytes;
+    private BapFtpTransfer archiveTransfer;
+    private String archiveName;
+    private BapFtpArchive archive;
+    private String liveDirectory;
+    private String stagingDirectory;
+    private final List<String> backupDirectories = new ArrayList<>();
+    private BapFtpDeletionQueue deletionQueue;
+    private String mirrorRoot;
+    private final Map<String, Set<String>> mirrorEntries = new HashMap<>();
+    private String hostName;
 
     public BapFtpClient(final FTPClient ftpClient, final BPBuildInfo buildInfo) {
         this.ftpClient = ftpClient;
@@ -66,6 +145,55 @@ public class BapFtpClient extends BPDefaultClient<BapFtpTransfer> {
 
     public void setFtpClient(final FTPClient ftpClient) {
         this.ftpClient = ftpClient;
+        asciiFileType = null;
+    }
+
+    void setParallelUploader(final BapFtpParallelUploader parallelUploader) {
+        this.parallelUploader = parallelUploader;
+    }
+
+    void setFanOut(final BapFtpFanOut fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    void setConcurrentTransfers(final BapFtpConcurrentTransfers concurrentTransfers) {
+        this.concurrentTransfers = concurrentTransfers;
+    }
+
+    void setSegmentedUpload(final BapFtpSegmentedUpload segmentedUpload) {
+        this.segmentedUpload = segmentedUpload;
+    }
+
+    void setConnectionPool(final BapFtpConnectionPool connectionPool, final BapFtpConnectionPool.Key key) {
+        this.connectionPool = connectionPool;
+        this.connectionPoolKey = key;
+    }
+
+    void setCommandListener(final BapFtpCommandCounter commandListener) {
+        this.commandListener = commandListener;
+    }
+
+    void setPublishJournal(final BapFtpPublishJournal publishJournal, final int attempt) {
+        this.publishJournal = publishJournal;
+        this.attempt = attempt;
+    }
+
+    void setDeletionQueue(final BapFtpDeletionQueue deletionQueue, final String hostName) {
+        this.deletionQueue = deletionQueue;
+        this.hostName = hostName;
+    }
+
+    void setModeZ(final int compressionLevel) {
+        this.modeZ = true;
+        this.compressionLevel = compressionLevel;
+    }
+
+    void setUploadManifestFile(final File uploadManifestFile) {
+        this.uploadManifestFile = uploadManifestFile;
+    }
+
+    String getCurrentDirectory() {
+        return currentDirectory;
     }
 
     public BPBuildInfo getBuildInfo() {
@@ -76,60 +204,218 @@ public class BapFtpClient extends BPDefaultClient<BapFtpTransfer> {
         this.buildInfo = buildInfo;
     }
 
+    /**
+     * Only sends a CWD for a directory that is not yet known to exist. Changing to a known directory just moves the
+     * current directory, and the server is sent to it when a command that depends on it is about to be sent.
+     */
     public boolean changeDirectory(final String directory) {
+        if (isConcurrent()) {
+            concurrentTransfers.changeDirectory(directory);
+            return true;
+        }
+        final boolean changed = changeCurrentDirectory(directory);
+        if (changed && fanOut != null) {
+            if (directory.equals(getAbsoluteRemoteRoot())) {
+                fanOut.changeToInitialDirectory();
+            } else {
+                fanOut.changeDirectory(directory);
+            }
+        }
+        return changed;
+    }
+
+    private boolean changeCurrentDirectory(final String directory) {
+        final String absolute = resolve(directory);
+        if (archiveTransfer != null) {
+            currentDirectory = absolute;
+            return true;
+        }
+        if (absolute != null && knownDirectories.contains(absolute)) {
+            currentDirectory = absolute;
+            addMirrorDirectory(absolute);
+            return true;
+        }
         try {
-            return ftpClient.changeWorkingDirectory(directory);
+            final boolean changed = ftpClient.changeWorkingDirectory(absolute == null ? directory : absolute);
+            if (changed) {
+                currentDirectory = absolute;
+                workingDirectory = absolute;
+                if (absolute != null) knownDirectories.add(absolute);
+                addMirrorDirectory(absolute);
+            }
+            return changed;
         } catch (IOException ioe) {
             throw new BapPublisherException(Messages.exception_cwdException(directory), ioe);
         }
     }
 
     public boolean makeDirectory(final String directory) {
+        if (isConcurrent()) return true;
         try {
             if (disableMakeNestedDirs && directory.contains("/")) return false;
-            return ftpClient.makeDirectory(directory);
+            if (archiveTransfer != null) return true;
+            final String absolute = resolve(directory);
+            final boolean made = ftpClient.makeDirectory(absolute == null ? directory : absolute);
+            if (made && absolute != null) {
+                knownDirectories.add(absolute);
+                remoteListings.put(absolute, new HashMap<>());
+                addMirrorDirectory(absolute);
+            }
+            return made;
         } catch (IOException ioe) {
             throw new BapPublisherException(Messages.exception_mkdirException(directory), ioe);
         }
     }
 
+    /**
+     * Lists the tree below the current directory one directory at a time, reading each listing in pages, deletes the
+     * files by their absolute path, and then removes the directories deepest first, so the working directory on the
+     * server is never changed. When the host has parallel connections the files are deleted over those connections.
+     */
     public void deleteTree() throws IOException {
-        ftpClient.setListHiddenFiles(true);
-        delete();
+        if (isConcurrent()) {
+            concurrentTransfers.deleteTree();
+            return;
+        }
+        if (fanOut != null) fanOut.deleteTree();
+        final String root = getAbsoluteCurrentDirectory();
+        invalidateUploadManifest();
+        if (publishJournal != null) publishJournal.forgetBelow(root);
+        if (deletionQueue != null && !root.equals(getAbsoluteRemoteRoot()) && moveAside(root)) return;
+        deleteTree(root);
     }
 
-    private void delete() throws IOException {
-        // use the extension if available
-        if (ftpClient.hasFeature("MLST")) {
-            for (FTPFile file : ftpClient.mlistDir()) {
-                delete(file);
+    /**
+     * Renames the directory out of the way and makes a new empty one in its place, and leaves the old tree to the
+     * deletion queue. Falls back to deleting the tree here if the server will not do either.
+     */
+    private boolean moveAside(final String directory) throws IOException {
+        final String deleting = directory + DELETING_SUFFIX + System.currentTimeMillis();
+        if (!ftpClient.rename(directory, deleting)) return false;
+        if (!ftpClient.makeDirectory(directory)) {
+            ftpClient.rename(deleting, directory);
+            return false;
+        }
+        forgetDirectoriesBelow(directory);
+        knownDirectories.add(directory);
+        remoteListings.clear();
+        workingDirectory = null;
+        deletionQueue.add(hostName, deleting);
+        if (buildInfo != null) buildInfo.println(Messages.console_deletingInBackground(directory));
+        return true;
+    }
+
+    private void deleteTree(final String root) throws IOException {
+        ftpClient.setListHiddenFiles(true);
+        remoteListings.clear();
+        final boolean mlst = ftpClient.hasFeature("MLST");
+        setDeflating(false);
+        final List<String> directories = new ArrayList<>();
+        final Deque<String> pending = new ArrayDeque<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final String directory = pending.poll();
+            if (mlst) {
+                for (FTPFile file : ftpClient.mlistDir(directory)) {
+                    delete(directory, file, directories, pending);
+                }
+            } else {
+                final FTPListParseEngine listParser = ftpClient.initiateListParsing(directory);
+                if (listParser == null) throw new BapPublisherException(Messages.exception_client_listParserNull());
+                while (listParser.hasNext()) {
+                    for (FTPFile file : listParser.getNext(LIST_PAGE_SIZE)) {
+                        delete(directory, file, directories, pending);
+                    }
+                }
             }
-        } else {
-            final FTPListParseEngine listParser = ftpClient.initiateListParsing();
-            if (listParser == null) throw new BapPublisherException(Messages.exception_client_listParserNull());
-            while (listParser.hasNext()) delete(listParser.getNext(1)[0]);
         }
+        if (parallelUploader != null) parallelUploader.awaitCompletion();
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            final String directory = directories.get(i);
+            if (!ftpClient.removeDirectory(directory))
+                throw new BapPublisherException(Messages.exception_client_rmdir(directory));
+        }
+        forgetDirectoriesBelow(root);
+    }
+
+    private void forgetDirectoriesBelow(final String root) {
+        final String prefix = join(root, "");
+        knownDirectories.removeIf(known -> known.startsWith(prefix));
     }
 
-    private void delete(final FTPFile ftpFile) throws IOException {
+    private void delete(
+            final String directory, final FTPFile ftpFile, final List<String> directories, final Deque<String> pending)
+            throws IOException {
         if (ftpFile == null) throw new BapPublisherException(Messages.exception_client_fileIsNull());
         final String entryName = ftpFile.getName();
         if (".".equals(entryName) || "..".equals(entryName)) return;
+        final String path = (directory.endsWith("/") ? directory : directory + "/") + entryName;
         if (ftpFile.isDirectory()) {
-            if (!changeDirectory(entryName))
-                throw new BapPublisherException(Messages.exception_cwdException(entryName));
-            delete();
-            if (!ftpClient.changeToParentDirectory()) throw new BapPublisherException(Messages.exception_client_cdup());
-            if (!ftpClient.removeDirectory(entryName))
-                throw new BapPublisherException(Messages.exception_client_rmdir(entryName));
+            directories.add(path);
+            pending.add(path);
+        } else if (parallelUploader != null) {
+            parallelUploader.delete(path);
         } else {
-            if (!ftpClient.deleteFile(entryName))
-                throw new BapPublisherException(Messages.exception_client_dele(entryName));
+            deleteFile(path);
         }
     }
 
+    void deleteFile(final String path) throws IOException {
+        if (!ftpClient.deleteFile(path)) throw new BapPublisherException(Messages.exception_client_dele(path));
+    }
+
     public void beginTransfers(final BapFtpTransfer transfer) {
         if (!transfer.hasConfiguredSourceFiles()) throw new BapPublisherException(Messages.exception_noSourceFiles());
+        transferring = true;
+        if (concurrentTransfers != null) {
+            if (transfer.isRunInParallel()) {
+                concurrentTransfers.beginTransfers(transfer);
+                return;
+            }
+            concurrentTransfers.awaitCompletion();
+        }
+        if (fanOut != null) fanOut.beginTransfers(transfer);
+        beginStoring(transfer);
+        final String name = Util.fixEmptyAndTrim(transfer.getArchiveName());
+        if (name != null) {
+            if (!BapFtpArchive.isSupported(name))
+                throw new BapPublisherException(Messages.exception_archiveFormat(name));
+            try {
+                getAbsoluteCurrentDirectory();
+            } catch (IOException ioe) {
+                throw new BapPublisherException(Messages.exception_cwdException(name), ioe);
+            }
+            archiveTransfer = transfer;
+            archiveName = buildInfo == null || buildInfo.getEnvVars() == null
+                    ? name
+                    : Util.replaceMacro(name, buildInfo.getEnvVars());
+        }
+        if (transfer.isStageAndSwap()) {
+            try {
+                beginStaging(transfer);
+            } catch (IOException ioe) {
+                throw new BapPublisherException(Messages.exception_failedToStage(ioe.getLocalizedMessage()), ioe);
+            }
+        } else if (transfer.isMirror() && name == null) {
+            try {
+                getAbsoluteCurrentDirectory();
+            } catch (IOException ioe) {
+                throw new BapPublisherException(Messages.exception_failedToMirror(ioe.getLocalizedMessage()), ioe);
+            }
+            final String remoteDirectory = getExpandedRemoteDirectory(transfer);
+            mirrorRoot = remoteDirectory.isEmpty()
+                    ? getAbsoluteRemoteRoot()
+                    : join(getAbsoluteRemoteRoot(), remoteDirectory);
+            mirrorEntries.clear();
+            mirrorEntries.put(mirrorRoot, new HashSet<>());
+        }
+    }
+
+    /**
+     * Only sets the transfer type, for a session that stores files on behalf of the session that began the transfer
+     * set, which alone sets up staging, mirroring, archives and fan-out.
+     */
+    void beginStoring(final BapFtpTransfer transfer) {
         try {
             if (!setTransferMode(transfer))
                 throw new BapPublisherException(Messages.exception_failedToSetTransferMode(ftpClient.getReplyString()));
@@ -138,13 +424,690 @@ public class BapFtpClient extends BPDefaultClient<BapFtpTransfer> {
         }
     }
 
+    /**
+     * Records a file or directory of a mirrored transfer set, and each of the directories above it up to the remote
+     * directory of the transfer set, so that anything else found in those directories can be deleted at the end.
+     */
+    private void addMirrorEntry(final String directory, final String name) {
+        if (mirrorRoot == null || !isWithin(directory, mirrorRoot)) return;
+        mirrorEntries.computeIfAbsent(directory, d -> new HashSet<>()).add(name);
+        String child = directory;
+        while (!child.equals(mirrorRoot)) {
+            final int slash = child.lastIndexOf('/');
+            final String parent = slash == 0 ? "/" : child.substring(0, slash);
+            mirrorEntries.computeIfAbsent(parent, d -> new HashSet<>()).add(child.substring(slash + 1));
+            child = parent;
+        }
+    }
+
+    private void addMirrorDirectory(final String directory) {
+        if (mirrorRoot == null || directory == null || !isWithin(directory, mirrorRoot)) return;
+        mirrorEntries.computeIfAbsent(directory, d -> new HashSet<>());
+        if (directory.equals(mirrorRoot)) return;
+        final int slash = directory.lastIndexOf('/');
+        addMirrorEntry(slash == 0 ? "/" : directory.substring(0, slash), directory.substring(slash + 1));
+    }
+
+    /**
+     * Deletes whatever is on the server in the directories of a mirrored transfer set that was not published by it.
+     * Files are deleted over the parallel connections while they are still uploading, and directories are deleted
+     * last, as whole trees.
+     */
+    private void pruneMirror() throws IOException {
+        if (mirrorRoot == null) return;
+        final Map<String, Set<String>> entries = new HashMap<>(mirrorEntries);
+        mirrorRoot = null;
+        mirrorEntries.clear();
+        final BapFtpUploadManifest manifest = getUploadManifest();
+        final List<String> directories = new ArrayList<>();
+        int deleted = 0;
+        for (Map.Entry<String, Set<String>> entry : entries.entrySet()) {
+            for (FTPFile remote : getRemoteListing(entry.getKey()).values()) {
+                final String name = remote.getName();
+                if (".".equals(name) || "..".equals(name) || entry.getValue().contains(name)) continue;
+                final String path = join(entry.getKey(), name);
+                if (remote.isDirectory()) {
+                    directories.add(path);
+                } else if (parallelUploader != null) {
+                    parallelUploader.delete(path);
+                } else {
+                    deleteFile(path);
+                }
+                if (manifest != null) manifest.remove(path);
+                deleted++;
+            }
+        }
+        if (!directories.isEmpty()) invalidateUploadManifest();
+        for (String directory : directories) removeTree(directory);
+        if (deleted > 0 && buildInfo != null) buildInfo.println(Messages.console_mirrorDeleted(deleted));
+    }
+
+    private static boolean isWithin(final String directory, final String root) {
+        return directory.equals(root) || directory.startsWith(join(root, ""));
+    }
+
+    /**
+     * The files of a transfer set that is staged are uploaded to a sibling of its remote directory, which is swapped
+     * into place when the transfer set ends, so the remote directory is never seen empty or half updated. Anything
+     * left in the staging directory by an earlier publish is deleted first, and as the staging directory starts empty,
+     * files are never skipped as unchanged.
+     */
+    private void beginStaging(final BapFtpTransfer transfer) throws IOException {
+        final String remoteDirectory = getExpandedRemoteDirectory(transfer);
+        if (remoteDirectory.isEmpty()) throw new BapPublisherException(Messages.exception_stageNeedsRemoteDirectory());
+        getAbsoluteCurrentDirectory();
+        liveDirectory = join(getAbsoluteRemoteRoot(), remoteDirectory);
+        stagingDirectory = liveDirectory + STAGING_SUFFIX;
+        removeTree(stagingDirectory);
+    }
+
+    /**
+     * @return the remote directory of the transfer set as it is expanded for this build, without leading or trailing
+     *     separators
+     */
+    private String getExpandedRemoteDirectory(final BapFtpTransfer transfer) {
+        String remoteDirectory = Util.fixNull(transfer.getRemoteDirectory());
+        if (buildInfo != null && transfer.isRemoteDirectorySDF()) {
+            remoteDirectory = new SimpleDateFormat(remoteDirectory).format(buildInfo.getBuildTime().getTime());
+        } else if (buildInfo != null) {
+            remoteDirectory = Util.replaceMacro(remoteDirectory, buildInfo.getEnvVars());
+        }
+        return remoteDirectory.replaceAll("^[/\\\\]+|[/\\\\]+$", "");
+    }
+
+    /**
+     * Deletes the directories made by earlier builds of a transfer set with a date format remote directory that are
+     * outside its retention. Only the parent of this build's directory is listed, and only the directories in it whose
+     * names the date format would produce are counted; this build's directory is always kept. The remote directory has
+     * its leading and trailing slashes stripped, so they are put back around each name before it is parsed.
+     */
+    private void pruneDatedDirectories(final BapFtpTransfer transfer) throws IOException {
+        if (!transfer.isRemoteDirectorySDF() || buildInfo == null) return;
+        if (transfer.getRetentionCount() <= 0 && transfer.getRetentionDays() <= 0) return;
+        pruneDatedDirectories(
+                transfer.getRemoteDirectory(),
+                getExpandedRemoteDirectory(transfer),
+                transfer.getRetentionCount(),
+                transfer.getRetentionDays());
+    }
+
+    void pruneDatedDirectories(final String pattern, final String current, final int count, final int days)
+            throws IOException {
+        final int slash = current.lastIndexOf('/');
+        final String prefix = current.substring(0, slash + 1);
+        final String root = getAbsoluteRemoteRoot();
+        final String parent = slash < 0 ? root : join(root, current.substring(0, slash));
+        final SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setLenient(false);
+        final String sample = format.format(new Date());
+        final String stripped = sample.replaceAll("^[/\\\\]+", "");
+        final String leading = sample.substring(0, sample.length() - stripped.length());
+        final String trailing = stripped.substring(stripped.replaceAll("[/\\\\]+$", "").length());
+        final List<Map.Entry<Date, String>> dated = new ArrayList<>();
+        setDeflating(false);
+        final FTPFile[] files = ftpClient.hasFeature("MLST") ? ftpClient.mlistDir(parent) : ftpClient.listFiles(parent);
+        for (FTPFile file : files == null ? new FTPFile[0] : files) {
+            if (file == null || !file.isDirectory()) continue;
+            final String name = prefix + file.getName();
+            final Date date = name.equals(current) ? null : parseDate(format, leading + name + trailing);
+            if (date != null) dated.add(new AbstractMap.SimpleEntry<>(date, join(parent, file.getName())));
+        }
+        dated.sort(Map.Entry.<Date, String>comparingByKey().reversed());
+        final long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        int pruned = 0;
+        for (int i = 0; i < dated.size(); i++) {
+            final boolean tooMany = count > 0 && i >= count - 1;
+            final boolean tooOld = days > 0 && dated.get(i).getKey().getTime() < cutoff;
+            if (!tooMany && !tooOld) continue;
+            final String directory = dated.get(i).getValue();
+            if (deletionQueue != null) {
+                deletionQueue.add(hostName, directory);
+            } else {
+                removeTree(directory);
+            }
+            pruned++;
+        }
+        if (pruned > 0 && buildInfo != null) buildInfo.println(Messages.console_prunedDatedDirectories(pruned, parent));
+    }
+
+    private static Date parseDate(final SimpleDateFormat format, final String name) {
+        final ParsePosition position = new ParsePosition(0);
+        final Date date = format.parse(name, position);
+        if (date == null || position.getIndex() != name.length() || !format.format(date).equals(name)) return null;
+        return date;
+    }
+
+    void removeTree(final String directory) throws IOException {
+        deleteTree(directory);
+        ftpClient.removeDirectory(directory);
+        knownDirectories.remove(directory);
+    }
+
+    /**
+     * Renames the live directory out of the way and the staging directory into its place. The old directory is left
+     * to the deletion queue, or else deleted when the client disconnects, after the new one is already live. Staged
+     * files are not recorded in the upload manifest or the publish journal, so what they held about the old tree is
+     * dropped along with it.
+     */
+    private void swapStaging() throws IOException {
+        final String live = liveDirectory;
+        final String staging = stagingDirectory;
+        liveDirectory = null;
+        stagingDirectory = null;
+        final String backup = live + BACKUP_SUFFIX + System.currentTimeMillis();
+        final boolean backedUp = ftpClient.rename(live, backup);
+        if (!ftpClient.rename(staging, live)) {
+            final String reply = ftpClient.getReplyString();
+            if (backedUp) ftpClient.rename(backup, live);
+            throw new BapPublisherException(Messages.exception_failedToSwap(staging, live, reply));
+        }
+        if (backedUp && deletionQueue != null) {
+            deletionQueue.add(hostName, backup);
+        } else if (backedUp) {
+            backupDirectories.add(backup);
+        }
+        forgetDirectoriesBelow(live);
+        forgetDirectoriesBelow(staging);
+        knownDirectories.remove(staging);
+        remoteListings.clear();
+        invalidateUploadManifest();
+        if (publishJournal != null) publishJournal.forgetBelow(live);
+        currentDirectory = getAbsoluteRemoteRoot();
+        workingDirectory = null;
+        if (buildInfo != null) buildInfo.println(Messages.console_swapped(live));
+    }
+
+    private void deleteBackups() {
+        for (String backup : backupDirectories) {
+            try {
+                removeTree(backup);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn(Messages.log_backupNotDeleted(backup), e);
+            }
+        }
+        backupDirectories.clear();
+    }
+
     public void transferFile(final BapFtpTransfer client, final FilePath filePath, final InputStream content)
             throws IOException {
-        if (!ftpClient.storeFile(filePath.getName(), content))
+        transferFile(client, filePath, content, true);
+    }
+
+    /**
+     * @param local true if the content is read from the file itself, so that the file may be read again instead, false
+     *     if it is a copy of the file that must be read to the end, such as the stream of a fan-out
+     */
+    void transferFile(
+            final BapFtpTransfer client, final FilePath filePath, final InputStream content, final boolean local)
+            throws IOException {
+        if (isConcurrent()) {
+            concurrentTransfers.transferFile(client, filePath);
+            return;
+        }
+        if (fanOut == null) {
+            transfer(client, filePath, content, local);
+            return;
+        }
+        try (BapFtpFanOut.Tee tee = fanOut.tee(client, filePath, content)) {
+            transfer(client, filePath, tee, false);
+            tee.drain();
+        }
+    }
+
+    private void transfer(
+            final BapFtpTransfer client, final FilePath filePath, final InputStream content, final boolean local)
+            throws IOException {
+        if (archiveTransfer != null) {
+            getArchive().add(getArchivePath(filePath), filePath, content);
+            return;
+        }
+        if (mirrorRoot != null) addMirrorEntry(getAbsoluteCurrentDirectory(), filePath.getName());
+        final boolean staged = stagingDirectory != null;
+        final String journalPath = publishJournal == null || staged ? null : getRemotePath(filePath);
+        if (journalPath != null && publishJournal.isStoredBefore(journalPath, attempt)) {
+            journalSkippedFiles++;
+            journalSkippedBytes += length(filePath);
+            return;
+        }
+        final Runnable journal = journalPath == null ? null : () -> publishJournal.stored(journalPath, attempt);
+        final BapFtpUploadManifest manifest = staged ? null : getUploadManifest();
+        final boolean skipUnchanged = !staged && (client.isSkipUnchanged() || mirrorRoot != null);
+        if (manifest == null && !skipUnchanged) {
+            upload(client, filePath, content, local, journal);
+            return;
+        }
+        final long length = length(filePath);
+        final String path = manifest == null ? null : getRemotePath(filePath);
+        final byte[] digest = manifest == null ? null : digest(filePath);
+        if ((manifest != null && manifest.isUnchanged(path, length, digest))
+                || (skipUnchanged && isUnchangedOnServer(filePath, length))) {
+            skippedFiles++;
+            skippedBytes += length;
+            discardPartialTemporary(client, filePath);
+            return;
+        }
+        uploadedFiles++;
+        uploadedBytes += length;
+        if (manifest == null) {
+            upload(client, filePath, content, local, journal);
+        } else {
+            manifest.remove(path);
+            upload(client, filePath, content, local, () -> {
+                recordUpload(manifest, path, length, digest);
+                if (journal != null) journal.run();
+            });
+        }
+    }
+
+    /**
+     * While a transfer set is streamed into an archive, changing and making directories only moves the current
+     * directory, and each file goes into the archive under its path from the remote root. Extracting the archive in the
+     * remote root gives the same layout as publishing the files one by one.
+     */
+    private BapFtpArchive getArchive() throws IOException {
+        if (archive == null) {
+            final String path = isAbsolute(archiveName) ? archiveName : join(getAbsoluteRemoteRoot(), archiveName);
+            final int parent = path.lastIndexOf('/');
+            if (parent > 0 && !knownDirectories.contains(path.substring(0, parent))) makeParentDirectories(path);
+            setDeflating(false);
+            final OutputStream data = ftpClient.storeFileStream(path);
+            if (data == null)
+                throw new BapPublisherException(
+                        Messages.exception_failedToStoreArchive(archiveName, ftpClient.getReplyString()));
+            archive = BapFtpArchive.open(archiveName, data, archiveTransfer.isArchiveMetadata());
+        }
+        return archive;
+    }
+
+    private void makeParentDirectories(final String path) throws IOException {
+        final String root = join(getAbsoluteRemoteRoot(), "");
+        int slash = path.indexOf('/', path.startsWith(root) ? root.length() : 1);
+        while (slash > 0) {
+            final String directory = path.substring(0, slash);
+            if (!knownDirectories.contains(directory)) {
+                ftpClient.makeDirectory(directory);
+                knownDirectories.add(directory);
+            }
+            slash = path.indexOf('/', slash + 1);
+        }
+    }
+
+    private String getArchivePath(final FilePath filePath) throws IOException {
+        final String root = join(getAbsoluteRemoteRoot(), "");
+        final String directory = join(getAbsoluteCurrentDirectory(), "");
+        final int start = directory.startsWith(root) ? root.length() : 1;
+        return directory.substring(start) + filePath.getName();
+    }
+
+    private static String join(final String directory, final String name) {
+        return (directory.endsWith("/") ? directory : directory + "/") + name;
+    }
+
+    private void finishArchive() throws IOException {
+        final BapFtpArchive finished = archive;
+        archive = null;
+        archiveTransfer = null;
+        if (finished == null) return;
+        finished.close();
+        if (!ftpClient.completePendingCommand())
+            throw new BapPublisherException(
+                    Messages.exception_failedToStoreArchive(archiveName, ftpClient.getReplyString()));
+        if (buildInfo != null)
+            buildInfo.println(Messages.console_archiveSummary(finished.getFiles(), finished.getBytes(), archiveName));
+    }
+
+    /**
+     * The parallel connections read the file themselves, so content that is not the local file is stored here.
+     */
+    private void upload(
+            final BapFtpTransfer transfer,
+            final FilePath filePath,
+            final InputStream content,
+            final boolean local,
+            final Runnable onStored)
+            throws IOException {
+        if (parallelUploader != null && local) {
+            parallelUploader.upload(transfer, getAbsoluteCurrentDirectory(), filePath, onStored);
+            return;
+        }
+        store(transfer, filePath, content, local);
+        if (onStored != null) onStored.run();
+    }
+
+    /**
+     * When the transfer set chooses the transfer type per file, the server is switched to the type of this file if the
+     * file before had the other one.
+     */
+    void store(final BapFtpTransfer transfer, final FilePath filePath, final InputStream content, final boolean local)
+            throws IOException {
+        if (!transfer.isAutoTransferType()) {
+            store(transfer, filePath, content, transfer.isAsciiMode(), local);
+            return;
+        }
+        final boolean ascii;
+        final InputStream source;
+        if (BapFtpTransferType.hasAsciiExtensions(transfer)) {
+            ascii = BapFtpTransferType.hasAsciiExtension(transfer, filePath.getName());
+            source = content;
+        } else {
+            final PushbackInputStream sniffed = new PushbackInputStream(content, BapFtpTransferType.SNIFF_SIZE);
+            ascii = BapFtpTransferType.isText(sniffed);
+            source = sniffed;
+        }
+        if (!setFileType(ascii))
+            throw new BapPublisherException(Messages.exception_failedToSetTransferMode(ftpClient.getReplyString()));
+        store(transfer, filePath, source, ascii, local);
+    }
+
+    /**
+     * A file that failed part way is recorded in the build info, so that when the publisher is retried the upload can
+     * carry on from the size of the partial file on the server, if the server supports REST STREAM. Only the local file
+     * is uploaded in segments, as the other segments are read from the file.
+     */
+    private void store(
+            final BapFtpTransfer transfer,
+            final FilePath filePath,
+            final InputStream content,
+            final boolean ascii,
+            final boolean local)
+            throws IOException {
+        syncWorkingDirectory();
+        final String name = filePath.getName();
+        final String temporaryName = getTemporaryName(transfer, name);
+        final String storeName = temporaryName == null ? name : temporaryName;
+        final String remotePath = currentDirectory == null ? null : join(currentDirectory, storeName);
+        final Set<String> partialUploads = remotePath == null ? null : getPartialUploads();
+        final boolean deflate = modeZ && !ascii && isModeZSupported();
+        setDeflating(deflate);
+        final long length = segmentedUpload == null || remotePath == null || !local ? -1 : length(filePath);
+        boolean segmented = false;
+        boolean stored = false;
+        try {
+            final boolean wasPartial = partialUploads != null && partialUploads.remove(remotePath);
+            final boolean resumed =
+                    wasPartial && !deflate && !ascii && resume(storeName, filePath, content);
+            segmented = !resumed
+                    && !deflate
+                    && !ascii
+                    && length > 0
+                    && segmentedUpload.isSegmented(length)
+                    && ftpClient.hasFeature("REST", "STREAM");
+            if (!resumed
+                    && !(segmented
+                            ? storeSegmented(storeName, remotePath, filePath, content, length)
+                            : deflate
+                                    ? storeDeflated(storeName, content)
+                                    : storeFile(storeName, filePath, content, ascii, local)))
+                throw new BapPublisherException(Messages.exception_failedToStoreFile(ftpClient.getReplyString()));
+            if (temporaryName != null) rename(temporaryName, name);
+            stored = true;
+        } finally {
+            if (!stored && !segmented && partialUploads != null) partialUploads.add(remotePath);
+        }
+        if ((transfer.isSkipUnchanged() || transfer.isMirror()) && ftpClient.hasFeature("MFMT"))
+            ftpClient.setModificationTime(filePath.getName(), formatModificationTime(lastModified(filePath)));
+    }
+
+    private static String getTemporaryName(final BapFtpTransfer transfer, final String name) {
+        final String prefix = Util.fixNull(transfer.getTemporaryPrefix());
+        final String suffix = Util.fixNull(transfer.getTemporarySuffix());
+        return prefix.isEmpty() && suffix.isEmpty() ? null : prefix + name + suffix;
+    }
+
+    /**
+     * Renames the stored temporary file over the target, so that readers only ever see a complete file. Some servers
+     * will not rename over an existing file, so the target is deleted and the rename tried again.
+     */
+    private void rename(final String from, final String to) throws IOException {
+        if (ftpClient.rename(from, to)) return;
+        ftpClient.deleteFile(to);
+        if (!ftpClient.rename(from, to))
+            throw new BapPublisherException(Messages.exception_failedToRename(from, to, ftpClient.getReplyString()));
+    }
+
+    /**
+     * A file that is skipped on a retry may have left a temporary file from the attempt that failed.
+     */
+    private void discardPartialTemporary(final BapFtpTransfer transfer, final FilePath filePath) throws IOException {
+        final String temporaryName = getTemporaryName(transfer, filePath.getName());
+        final Set<String> partialUploads = temporaryName == null ? null : getPartialUploads();
+        if (partialUploads == null || currentDirectory == null) return;
+        final String path = join(currentDirectory, temporaryName);
+        if (partialUploads.remove(path) && !ftpClient.deleteFile(path))
+            LOG.warn(Messages.log_temporaryNotDeleted(path, ftpClient.getReplyString()));
+    }
+
+    private boolean isModeZSupported() throws IOException {
+        if (modeZSupported == null) {
+            modeZSupported = ftpClient.hasFeature("MODE", "Z");
+            if (!modeZSupported && buildInfo != null) buildInfo.printIfVerbose(Messages.console_modeZNotSupported());
+        }
+        return modeZSupported;
+    }
+
+    /**
+     * MODE Z applies to every data connection, including directory listings, so the mode is only changed when a
+     * transfer needs the other one.
+     */
+    private void setDeflating(final boolean deflate) throws IOException {
+        if (deflate == deflating) return;
+        final String mode = deflate ? "Z" : "S";
+        if (!FTPReply.isPositiveCompletion(ftpClient.sendCommand("MODE", mode)))
+            throw new BapPublisherException(
+                    Messages.exception_failedToSetDataMode(mode, ftpClient.getReplyString()));
+        deflating = deflate;
+    }
+
+    private boolean storeDeflated(final String name, final InputStream content) throws IOException {
+        final OutputStream data = ftpClient.storeFileStream(name);
+        if (data == null) return false;
+        final Deflater deflater = new Deflater(compressionLevel);
+        try {
+            try (OutputStream deflated = new DeflaterOutputStream(data, deflater)) {
+                content.transferTo(deflated);
+            }
+            deflatedBytes += deflater.getBytesRead();
+            deflatedWireBytes += deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+        return ftpClient.completePendingCommand();
+    }
+
+    /**
+     * A binary file on this node is sent from its channel when the client can, unless the content is not the file
+     * itself, such as the tee or pipe of a fan-out, which must be read to the end. If the file cannot be opened as a
+     * channel, it is sent from the stream.
+     */
+    private boolean storeFile(
+            final String name,
+            final FilePath filePath,
+            final InputStream content,
+            final boolean ascii,
+            final boolean local)
+            throws IOException {
+        if (ascii) return storeAscii(name, content);
+        if (!local || filePath.isRemote() || !(ftpClient instanceof BapFtpChannelClient))
+            return ftpClient.storeFile(name, content);
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(filePath.getRemote()), StandardOpenOption.READ);
+        } catch (IOException | InvalidPathException e) {
+            LOG.debug(Messages.log_fileChannelUnavailable(filePath.getRemote()), e);
+            return ftpClient.storeFile(name, content);
+        }
+        try (FileChannel source = channel) {
+            return ((BapFtpChannelClient) ftpClient).storeFile(name, source);
+        }
+    }
+
+    /**
+     * The client is left in binary mode for ASCII transfers, see {@link #setFileType}, so the line endings are
+     * converted here.
+     */
+    private boolean storeAscii(final String name, final InputStream content) throws IOException {
+        final OutputStream data = ftpClient.storeFileStream(name);
+        if (data == null) return false;
+        try (OutputStream ascii = new BapFtpAsciiOutputStream(data)) {
+            content.transferTo(ascii);
+        }
+        return ftpClient.completePendingCommand();
+    }
+
+    /**
+     * A segmented file is not recorded as partial when it fails, because the segments leave holes in it, so its size
+     * on the server does not tell how much of it was stored.
+     */
+    private boolean storeSegmented(
+            final String name, final String path, final FilePath filePath, final InputStream content, final long length)
+            throws IOException {
+        final OutputStream data = ftpClient.storeFileStream(name);
+        if (data == null) return false;
+        final List<Future<?>> segments = segmentedUpload.storeSegments(path, filePath, length);
+        final boolean stored;
+        boolean awaited = false;
+        try {
+            try (OutputStream first = data) {
+                BapFtpSegmentedUpload.copy(content, first, segmentedUpload.getSegmentLength(length));
+            }
+            stored = ftpClient.completePendingCommand();
+            segmentedUpload.awaitSegments(segments);
+            awaited = true;
+        } finally {
+            if (!awaited) segmentedUpload.cancelSegments(segments);
+        }
+        if (!stored) return false;
+        final long size = parseSize(ftpClient.getSize(name));
+        if (size >= 0 && size != length) return false;
+        if (buildInfo != null) buildInfo.printIfVerbose(Messages.console_segmentedUpload(name, segments.size() + 1));
+        return true;
+    }
+
+    private boolean resume(final String name, final FilePath filePath, final InputStream content) throws IOException {
+        if (!ftpClient.hasFeature("REST", "STREAM")) return false;
+        final long remoteSize = parseSize(ftpClient.getSize(name));
+        final long length = length(filePath);
+        if (remoteSize <= 0 || remoteSize > length) return false;
+        if (buildInfo != null) buildInfo.println(Messages.console_resumingUpload(name, remoteSize, length));
+        if (remoteSize == length) return true;
+        skip(content, remoteSize);
+        ftpClient.setRestartOffset(remoteSize);
+        if (!ftpClient.storeFile(name, content))
             throw new BapPublisherException(Messages.exception_failedToStoreFile(ftpClient.getReplyString()));
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> getPartialUploads() {
+        if (buildInfo == null) return null;
+        synchronized (buildInfo) {
+            Set<String> partialUploads = (Set<String>) buildInfo.get(PARTIAL_UPLOADS_KEY);
+            if (partialUploads == null) {
+                partialUploads = Collections.synchronizedSet(new HashSet<>());
+                buildInfo.put(PARTIAL_UPLOADS_KEY, partialUploads);
+            }
+            return partialUploads;
+        }
+    }
+
+    private static long parseSize(final String size) {
+        if (size == null) return -1;
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static void skip(final InputStream content, final long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            final long skipped = content.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else {
+                if (content.read() < 0) throw new EOFException();
+                remaining--;
+            }
+        }
+    }
+
+    public void endTransfers(final BapFtpTransfer transfer) {
+        if (isConcurrent()) {
+            concurrentTransfers.endTransfers(transfer);
+            transferring = false;
+            return;
+        }
+        try {
+            finishArchive();
+        } catch (IOException ioe) {
+            throw new BapPublisherException(
+                    Messages.exception_failedToStoreArchive(archiveName, ioe.getLocalizedMessage()), ioe);
+        }
+        try {
+            pruneMirror();
+        } catch (IOException ioe) {
+            throw new BapPublisherException(Messages.exception_failedToMirror(ioe.getLocalizedMessage()), ioe);
+        }
+        if (parallelUploader != null) parallelUploader.awaitCompletion();
+        if (stagingDirectory != null) {
+            final String staging = stagingDirectory;
+            final String live = liveDirectory;
+            try {
+                swapStaging();
+            } catch (IOException ioe) {
+                throw new BapPublisherException(
+                        Messages.exception_failedToSwap(staging, live, ioe.getLocalizedMessage()), ioe);
+            }
+        }
+        try {
+            pruneDatedDirectories(transfer);
+        } catch (IOException ioe) {
+            throw new BapPublisherException(Messages.exception_failedToPrune(ioe.getLocalizedMessage()), ioe);
+        }
+        if ((transfer.isSkipUnchanged() || transfer.isMirror() || uploadManifest != null) && buildInfo != null)
+            buildInfo.println(Messages.console_syncSummary(uploadedFiles, uploadedBytes, skippedFiles, skippedBytes));
+        if (journalSkippedFiles > 0 && buildInfo != null)
+            buildInfo.println(Messages.console_journalSkipped(journalSkippedFiles, journalSkippedBytes));
+        uploadedFiles = 0;
+        uploadedBytes = 0;
+        skippedFiles = 0;
+        skippedBytes = 0;
+        journalSkippedFiles = 0;
+        journalSkippedBytes = 0;
+        if (deflatedBytes > 0 && buildInfo != null)
+            buildInfo.printIfVerbose(Messages.console_modeZSummary(deflatedBytes, deflatedWireBytes));
+        deflatedBytes = 0;
+        deflatedWireBytes = 0;
+        if (fanOut != null) fanOut.endTransfers(transfer);
+        transferring = false;
     }
 
     public void disconnect() {
+        try {
+            awaitTransfers();
+        } finally {
+            disconnectSession();
+        }
+    }
+
+    private void awaitTransfers() {
+        try {
+            if (concurrentTransfers != null) concurrentTransfers.awaitCompletion();
+        } finally {
+            if (fanOut != null) fanOut.awaitCompletion();
+        }
+    }
+
+    private void disconnectSession() {
+        if (fanOut != null) fanOut.close();
+        deleteBackups();
+        if (parallelUploader != null) parallelUploader.close();
+        if (segmentedUpload != null) segmentedUpload.close();
+        closeUploadManifest();
+        printTlsSessionReuse();
+        printCommandCount();
+        if (connectionPool != null && releaseToPool()) return;
         if ((ftpClient != null) && ftpClient.isConnected()) {
             try {
                 ftpClient.disconnect();
@@ -155,16 +1118,244 @@ public class BapFtpClient extends BPDefaultClient<BapFtpTransfer> {
         }
     }
 
+    /**
+     * publish-over closes the client quietly, so the transfer sets still running in parallel and the fan-out targets
+     * are waited for here, and their failures thrown, unless a transfer set of this client has already failed and that
+     * failure is on its way out. Only the disconnect itself is quiet.
+     */
     public void disconnectQuietly() {
         try {
-            disconnect();
-        } catch (Exception e) {
-            LOG.warn(Messages.log_disconnectQuietly(), e);
+            awaitTransfers();
+        } catch (BapPublisherException bpe) {
+            if (!transferring) throw bpe;
+            LOG.warn(Messages.log_disconnectQuietly(), bpe);
+        } finally {
+            try {
+                disconnectSession();
+            } catch (Exception e) {
+                LOG.warn(Messages.log_disconnectQuietly(), e);
+            }
+        }
+    }
+
+    private void printTlsSessionReuse() {
+        if (!(ftpClient instanceof BapFtpsClient) || buildInfo == null) return;
+        final BapFtpsClient ftpsClient = (BapFtpsClient) ftpClient;
+        if (ftpsClient.getDataConnections() > 0)
+            buildInfo.printIfVerbose(Messages.console_tlsSessionReuse(
+                    ftpsClient.getOfferedDataConnections(), ftpsClient.getDataConnections()));
+        ftpsClient.resetCounters();
+    }
+
+    private void printCommandCount() {
+        if (commandListener == null || buildInfo == null) return;
+        buildInfo.printIfVerbose(Messages.console_commandCount(commandListener.getCommandCount()));
+        commandListener.resetCommandCount();
+    }
+
+    private boolean isConcurrent() {
+        return concurrentTransfers != null && concurrentTransfers.isActive();
+    }
+
+    private boolean releaseToPool() {
+        if (archive != null) return false;
+        try {
+            setDeflating(false);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+        if (commandListener != null) ftpClient.removeProtocolCommandListener(commandListener);
+        commandListener = null;
+        final boolean released = connectionPool.release(connectionPoolKey, ftpClient, getAbsoluteRemoteRoot());
+        connectionPool = null;
+        return released;
+    }
+
+    private BapFtpUploadManifest getUploadManifest() throws IOException {
+        if (uploadManifestFile != null && !uploadManifestOpened) {
+            uploadManifestOpened = true;
+            uploadManifest = BapFtpUploadManifest.open(uploadManifestFile);
+            if (uploadManifest == null && buildInfo != null) buildInfo.println(Messages.console_uploadManifestInUse());
+        }
+        return uploadManifest;
+    }
+
+    private void invalidateUploadManifest() throws IOException {
+        final BapFtpUploadManifest manifest = getUploadManifest();
+        if (manifest != null) {
+            manifest.clear();
+        } else if (uploadManifestFile != null) {
+            BapFtpUploadManifest.invalidate(uploadManifestFile);
         }
     }
 
+    private void recordUpload(
+            final BapFtpUploadManifest manifest, final String path, final long length, final byte[] digest) {
+        try {
+            manifest.put(path, length, digest, System.currentTimeMillis());
+        } catch (IOException ioe) {
+            LOG.warn(Messages.log_uploadManifestUpdateFailed(path), ioe);
+        }
+    }
+
+    private void closeUploadManifest() {
+        if (uploadManifest == null) return;
+        try {
+            uploadManifest.close();
+        } catch (IOException ioe) {
+            LOG.warn(Messages.log_uploadManifestUpdateFailed(uploadManifestFile), ioe);
+        }
+        uploadManifest = null;
+    }
+
+    private String getRemotePath(final FilePath filePath) throws IOException {
+        return join(getAbsoluteCurrentDirectory(), filePath.getName());
+    }
+
+    /**
+     * A file is unchanged if the remote directory listing has a file with the same name and size, and a modification
+     * time that is not older than the local one at the precision the server reported.
+     */
+    private boolean isUnchangedOnServer(final FilePath filePath, final long length) throws IOException {
+        final FTPFile remote = getRemoteListing().get(filePath.getName());
+        return remote != null && remote.isFile() && remote.getSize() == length && isNotOlder(remote, filePath);
+    }
+
+    private boolean isNotOlder(final FTPFile remote, final FilePath filePath) throws IOException {
+        final Calendar timestamp = remote.getTimestamp();
+        if (timestamp == null) return false;
+        final long precision = getPrecision(timestamp);
+        if (precision == 0) return false;
+        return timestamp.getTimeInMillis() / precision >= lastModified(filePath) / precision;
+    }
+
+    private static long getPrecision(final Calendar timestamp) {
+        if (timestamp.isSet(Calendar.SECOND)) return 1000;
+        if (timestamp.isSet(Calendar.MINUTE)) return 60 * 1000;
+        return 0;
+    }
+
+    private Map<String, FTPFile> getRemoteListing() throws IOException {
+        return getRemoteListing(getAbsoluteCurrentDirectory());
+    }
+
+    /**
+     * The current directory is listed from the working directory; any other directory is listed by its path.
+     */
+    private Map<String, FTPFile> getRemoteListing(final String directory) throws IOException {
+        Map<String, FTPFile> listing = remoteListings.get(directory);
+        if (listing == null) {
+            final boolean current = directory.equals(currentDirectory);
+            if (current) syncWorkingDirectory();
+            setDeflating(false);
+            listing = new HashMap<>();
+            final boolean mlst = ftpClient.hasFeature("MLST");
+            final FTPFile[] files;
+            if (current) {
+                files = mlst ? ftpClient.mlistDir() : ftpClient.listFiles();
+            } else {
+                files = mlst ? ftpClient.mlistDir(directory) : ftpClient.listFiles(directory);
+            }
+            if (files != null) {
+                for (FTPFile file : files) {
+                    if (file != null) listing.put(file.getName(), file);
+                }
+            }
+            remoteListings.put(directory, listing);
+        }
+        return listing;
+    }
+
+    private static String formatModificationTime(final long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static long length(final FilePath filePath) throws IOException {
+        try {
+            return filePath.length();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ie.getLocalizedMessage());
+        }
+    }
+
+    private static byte[] digest(final FilePath filePath) throws IOException {
+        try {
+            return Util.fromHexString(filePath.digest());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ie.getLocalizedMessage());
+        }
+    }
+
+    private static long lastModified(final FilePath filePath) throws IOException {
+        try {
+            return filePath.lastModified();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ie.getLocalizedMessage());
+        }
+    }
+
+    private String getAbsoluteCurrentDirectory() throws IOException {
+        if (currentDirectory == null) {
+            final String pwd = ftpClient.printWorkingDirectory();
+            if (!isAbsolute(pwd)) throw new BapPublisherException(Messages.exception_pwdNotAbsolute(pwd));
+            currentDirectory = pwd;
+            workingDirectory = pwd;
+        }
+        return currentDirectory;
+    }
+
+    private void syncWorkingDirectory() throws IOException {
+        if (currentDirectory == null || currentDirectory.equals(workingDirectory)) return;
+        if (!ftpClient.changeWorkingDirectory(currentDirectory))
+            throw new BapPublisherException(Messages.exception_cwdException(currentDirectory));
+        workingDirectory = currentDirectory;
+    }
+
+    private String resolve(final String directory) {
+        if (isAbsolute(directory)) return stage(directory);
+        if (currentDirectory == null) return null;
+        return stage(join(currentDirectory, directory));
+    }
+
+    private String stage(final String absolute) {
+        if (stagingDirectory == null) return absolute;
+        if (absolute.equals(liveDirectory)) return stagingDirectory;
+        if (absolute.startsWith(liveDirectory + "/"))
+            return stagingDirectory + absolute.substring(liveDirectory.length());
+        return absolute;
+    }
+
+    private static boolean isAbsolute(final String directory) {
+        return directory != null && (directory.startsWith("/") || directory.startsWith("\\"));
+    }
+
+    /**
+     * A transfer set that chooses the transfer type per file starts in binary mode.
+     */
     private boolean setTransferMode(final BapFtpTransfer transfer) throws IOException {
-        final int fileType = transfer.isAsciiMode() ? FTP.ASCII_FILE_TYPE : FTP.BINARY_FILE_TYPE;
-        return ftpClient.setFileType(fileType);
+        final boolean ascii = transfer.isAsciiMode()
+                && !transfer.isAutoTransferType()
+                && Util.fixEmptyAndTrim(transfer.getArchiveName()) == null;
+        return setFileType(ascii);
+    }
+
+    /**
+     * For ASCII the server is sent TYPE A, but commons-net is left in binary mode, so that it does not convert the line
+     * endings itself one byte at a time. The server is only sent TYPE when the type changes.
+     */
+    private boolean setFileType(final boolean ascii) throws IOException {
+        if (asciiFileType == null) {
+            if (!ftpClient.setFileType(FTP.BINARY_FILE_TYPE)) return false;
+            asciiFileType = false;
+        }
+        if (asciiFileType == ascii) return true;
+        if (!FTPReply.isPositiveCompletion(ftpClient.sendCommand("TYPE", ascii ? "A" : "I"))) return false;
+        asciiFileType = ascii;
+        return true;
     }
 }
@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import java.io.PrintWriter;
+import org.apache.commons.net.PrintCommandListener;
+import org.apache.commons.net.ProtocolCommandEvent;
+
+/**
+ * Prints the commands sent to the server, and counts them so that the number of control channel round trips of a
+ * publish can be shown.
+ */
+class BapFtpCommandCounter extends PrintCommandListener {
+
+    private int commandCount;
+
+    BapFtpCommandCounter(final PrintWriter writer) {
+        super(writer);
+    }
+
+    int getCommandCount() {
+        return commandCount;
+    }
+
+    void resetCommandCount() {
+        commandCount = 0;
+    }
+
+    @Override
+    public void protocolCommandSent(final ProtocolCommandEvent event) {
+        commandCount++;
+        super.protocolCommandSent(event);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+/**
+ * Runs the transfer sets that are marked to run in parallel, each over a session of its own to the same host.
+ * <p>
+ * While such a transfer set is being walked, the client passes everything it is asked to do to the session of the
+ * transfer set, where it is done in the same order by a thread of its own, and the files are read there. Changing
+ * directory always succeeds for the client, and the session makes the directory if it does not have it yet. A transfer
+ * set that does not run in parallel waits for all the ones before it to finish, and so does disconnecting.
+ */
+final class BapFtpConcurrentTransfers {
+
+    private final BapFtpHostConfiguration hostConfig;
+    private final BPBuildInfo buildInfo;
+    private final int attempt;
+    private final List<Lane> lanes = new ArrayList<>();
+    private Lane current;
+
+    BapFtpConcurrentTransfers(
+            final BapFtpHostConfiguration hostConfig, final BPBuildInfo buildInfo, final int attempt) {
+        this.hostConfig = hostConfig;
+        this.buildInfo = buildInfo;
+        this.attempt = attempt;
+    }
+
+    boolean isActive() {
+        return current != null;
+    }
+
+    void beginTransfers(final BapFtpTransfer transfer) {
+        current = new Lane(lanes.size() + 1);
+        lanes.add(current);
+        current.submit(client -> client.beginTransfers(transfer));
+    }
+
+    void changeDirectory(final String directory) {
+        current.submit(client -> {
+            if (!client.changeDirectory(directory)
+                    && !(client.makeDirectory(directory) && client.changeDirectory(directory)))
+                throw new BapPublisherException(Messages.exception_cwdException(directory));
+        });
+    }
+
+    void deleteTree() {
+        current.submit(BapFtpClient::deleteTree);
+    }
+
+    void transferFile(final BapFtpTransfer transfer, final FilePath filePath) {
+        current.submit(client -> {
+            try (InputStream content = filePath.read()) {
+                client.transferFile(transfer, filePath, content);
+            }
+        });
+    }
+
+    void endTransfers(final BapFtpTransfer transfer) {
+        current.submit(client -> client.endTransfers(transfer));
+        current.close();
+        current = null;
+    }
+
+    /**
+     * Waits for every transfer set started so far to finish, and fails if any of them has failed.
+     */
+    void awaitCompletion() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        BapPublisherException failure = null;
+        for (Lane lane : lanes) {
+            try {
+                lane.awaitCompletion();
+            } catch (BapPublisherException bpe) {
+                if (failure == null) failure = bpe;
+            }
+        }
+        lanes.clear();
+        if (failure != null) throw failure;
+    }
+
+    private interface Operation {
+        void execute(BapFtpClient client) throws Exception;
+    }
+
+    private final class Lane {
+        private final ExecutorService executor;
+        private BapFtpClient client;
+        private Exception failure;
+
+        Lane(final int number) {
+            executor = Executors.newSingleThreadExecutor(new NamingThreadFactory(
+                    new DaemonThreadFactory(),
+                    "Publish over FTP transfer set " + number + " to " + hostConfig.getName()));
+        }
+
+        void submit(final Operation operation) {
+            executor.execute(() -> {
+                try {
+                    if (!isFailed()) operation.execute(getClient());
+                } catch (Exception e) {
+                    failed(e);
+                }
+            });
+        }
+
+        private BapFtpClient getClient() {
+            if (client == null) {
+                client = hostConfig.createClient(buildInfo, true, attempt);
+                client.setConcurrentTransfers(null);
+            }
+            return client;
+        }
+
+        private synchronized boolean isFailed() {
+            return failure != null;
+        }
+
+        private synchronized Exception getFailure() {
+            return failure;
+        }
+
+        private synchronized void failed(final Exception e) {
+            if (failure == null) failure = e;
+        }
+
+        /**
+         * The session is disconnected once everything before it is done, whether or not that failed.
+         */
+        void close() {
+            executor.execute(() -> {
+                if (client == null) return;
+                try {
+                    client.disconnect();
+                } catch (Exception e) {
+                    failed(e);
+                }
+            });
+            executor.shutdown();
+        }
+
+        void awaitCompletion() {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                throw new BapPublisherException(Messages.exception_concurrentTransferInterrupted(), ie);
+            }
+            final Exception failed = getFailure();
+            if (failed != null)
+                throw new BapPublisherException(
+                        Messages.exception_concurrentTransferFailed(failed.getLocalizedMessage()), failed);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Keeps logged in sessions open between publishes to the same host, on the node that does the publishing.
+ * <p>
+ * Sessions are keyed on the host configuration and a digest of the credentials used to log in, so that the pool does
+ * not keep the password itself for as long as the JVM runs. A session is checked with a NOOP
+ * before it is handed out again, and sessions that have been idle for longer than {@link #MAX_IDLE_TIME} are closed.
+ */
+final class BapFtpConnectionPool {
+
+    private static final Log LOG = LogFactory.getLog(BapFtpConnectionPool.class);
+
+    static final long MAX_IDLE_TIME = SystemProperties.getLong(
+            BapFtpConnectionPool.class.getName() + ".maxIdleTime", TimeUnit.MINUTES.toMillis(1));
+    static final int MAX_IDLE_PER_HOST =
+            SystemProperties.getInteger(BapFtpConnectionPool.class.getName() + ".maxIdlePerHost", 4);
+
+    private static final BapFtpConnectionPool INSTANCE = new BapFtpConnectionPool();
+
+    private final Map<Key, Deque<Session>> idle = new HashMap<>();
+    private boolean evictionScheduled;
+
+    static BapFtpConnectionPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return an idle session that has answered a NOOP, or null if there is none
+     */
+    Session borrow(final Key key) {
+        Session session = poll(key);
+        while (session != null) {
+            if (!session.isExpired(System.currentTimeMillis()) && isAlive(session.getFtpClient())) return session;
+            close(session.getFtpClient());
+            session = poll(key);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the pool has taken the session, false if the caller must disconnect it
+     */
+    boolean release(final Key key, final FTPClient ftpClient, final String absoluteRemoteRoot) {
+        if (MAX_IDLE_TIME <= 0 || absoluteRemoteRoot == null || !ftpClient.isConnected()) return false;
+        if (!FTPReply.isPositiveCompletion(ftpClient.getReplyCode())) return false;
+        synchronized (this) {
+            final Deque<Session> sessions = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (sessions.size() >= MAX_IDLE_PER_HOST) return false;
+            sessions.addLast(new Session(ftpClient, absoluteRemoteRoot, System.currentTimeMillis()));
+            scheduleEviction();
+        }
+        return true;
+    }
+
+    private synchronized Session poll(final Key key) {
+        final Deque<Session> sessions = idle.get(key);
+        if (sessions == null) return null;
+        final Session session = sessions.pollLast();
+        if (sessions.isEmpty()) idle.remove(key);
+        return session;
+    }
+
+    private void scheduleEviction() {
+        if (evictionScheduled) return;
+        evictionScheduled = true;
+        Timer.get().schedule(this::evictExpired, MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+    }
+
+    private void evictExpired() {
+        final List<Session> expired = new ArrayList<>();
+        synchronized (this) {
+            evictionScheduled = false;
+            final long now = System.currentTimeMillis();
+            final Iterator<Deque<Session>> hosts = idle.values().iterator();
+            while (hosts.hasNext()) {
+                final Deque<Session> sessions = hosts.next();
+                while (!sessions.isEmpty() && sessions.peekFirst().isExpired(now)) expired.add(sessions.pollFirst());
+                if (sessions.isEmpty()) hosts.remove();
+            }
+            if (!idle.isEmpty()) scheduleEviction();
+        }
+        for (Session session : expired) close(session.getFtpClient());
+    }
+
+    private static boolean isAlive(final FTPClient ftpClient) {
+        try {
+            return ftpClient.isConnected() && ftpClient.sendNoOp();
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private static void close(final FTPClient ftpClient) {
+        try {
+            if (ftpClient.isConnected()) ftpClient.disconnect();
+        } catch (IOException ioe) {
+            LOG.warn(Messages.log_disconnectQuietly(), ioe);
+        }
+    }
+
+    static final class Session {
+        private final FTPClient ftpClient;
+        private final String absoluteRemoteRoot;
+        private final long released;
+
+        Session(final FTPClient ftpClient, final String absoluteRemoteRoot, final long released) {
+            this.ftpClient = ftpClient;
+            this.absoluteRemoteRoot = absoluteRemoteRoot;
+            this.released = released;
+        }
+
+        FTPClient getFtpClient() {
+            return ftpClient;
+        }
+
+        String getAbsoluteRemoteRoot() {
+            return absoluteRemoteRoot;
+        }
+
+        boolean isExpired(final long now) {
+            return now - released >= MAX_IDLE_TIME;
+        }
+    }
+
+    static final class Key {
+        private final BapFtpHostConfiguration hostConfig;
+        private final byte[] credentials;
+
+        Key(final BapFtpHostConfiguration hostConfig, final String username, final String password) {
+            this.hostConfig = hostConfig;
+            this.credentials = BapFtpDigests.sha256(username, password);
+        }
+
+        @Override
+        public boolean equals(final Object that) {
+            if (this == that) return true;
+            if (that == null || getClass() != that.getClass()) return false;
+            final Key other = (Key) that;
+            return hostConfig.equals(other.hostConfig) && MessageDigest.isEqual(credentials, other.credentials);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hostConfig.hashCode() + Arrays.hashCode(credentials);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import jenkins.plugins.publish_over_ftp.descriptor.BapFtpPublisherPluginDescriptor;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Deletes old remote trees in the background on the controller, so that a build does not hold its executor while a
+ * tree is walked and deleted.
+ * <p>
+ * Deletions are run over their own sessions, at most {@link #CONNECTIONS} at a time. The pending deletions are kept in
+ * a file under the Jenkins home directory until they have finished, and are started again when Jenkins starts. A
+ * deletion that fails is tried again after {@link #RETRY_DELAY}, and is dropped once it has failed
+ * {@link #MAX_ATTEMPTS} times; one for a host configuration that no longer exists is dropped straight away.
+ */
+public class BapFtpDeletionQueue {
+
+    private static final Log LOG = LogFactory.getLog(BapFtpDeletionQueue.class);
+
+    static final int CONNECTIONS =
+            SystemProperties.getInteger(BapFtpDeletionQueue.class.getName() + ".connections", 1);
+    static final long RETRY_DELAY = SystemProperties.getLong(
+            BapFtpDeletionQueue.class.getName() + ".retryDelay", TimeUnit.MINUTES.toMillis(10));
+    static final int MAX_ATTEMPTS =
+            SystemProperties.getInteger(BapFtpDeletionQueue.class.getName() + ".maxAttempts", 144);
+
+    private static BapFtpDeletionQueue instance;
+
+    private final XmlFile file;
+    private final Set<Entry> pending = new LinkedHashSet<>();
+    private ExecutorService executor;
+    private boolean started;
+
+    BapFtpDeletionQueue(final File file) {
+        this.file = new XmlFile(file);
+    }
+
+    /**
+     * @return the queue, or null when not running on the controller
+     */
+    static synchronized BapFtpDeletionQueue get() {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) return null;
+        if (instance == null)
+            instance = new BapFtpDeletionQueue(
+                    new File(jenkins.getRootDir(), "publish-over-ftp" + File.separator + "deletions.xml"));
+        return instance;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resumePendingDeletions() {
+        final BapFtpDeletionQueue queue = get();
+        if (queue != null) queue.start();
+    }
+
+    synchronized void add(final String hostName, final String path) {
+        start();
+        final Entry entry = new Entry(hostName, path);
+        if (!pending.add(entry)) return;
+        save();
+        submit(entry);
+    }
+
+    synchronized List<Entry> getPending() {
+        return new ArrayList<>(pending);
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void start() {
+        if (started) return;
+        started = true;
+        if (!file.exists()) return;
+        try {
+            pending.addAll((List<Entry>) file.read());
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(Messages.log_deletionQueueUnreadable(file), e);
+        }
+        for (Entry entry : pending) submit(entry);
+    }
+
+    void submit(final Entry entry) {
+        synchronized (this) {
+            if (executor == null)
+                executor = Executors.newFixedThreadPool(
+                        CONNECTIONS, new NamingThreadFactory(new DaemonThreadFactory(), "Publish over FTP deletion"));
+        }
+        executor.execute(() -> run(entry));
+    }
+
+    private void run(final Entry entry) {
+        final BapFtpHostConfiguration hostConfiguration = getHostConfiguration(entry.hostName);
+        if (hostConfiguration == null) {
+            LOG.warn(Messages.log_deletionHostGone(entry.path, entry.hostName));
+            done(entry);
+            return;
+        }
+        final BapFtpClient client;
+        try {
+            client = hostConfiguration.createSession(BapFtpPublisherPluginDescriptor.createDummyBuildInfo());
+        } catch (RuntimeException e) {
+            retryLater(entry, e);
+            return;
+        }
+        try {
+            client.removeTree(entry.path);
+            done(entry);
+        } catch (IOException | RuntimeException e) {
+            retryLater(entry, e);
+        } finally {
+            client.disconnectQuietly();
+        }
+    }
+
+    private static BapFtpHostConfiguration getHostConfiguration(final String hostName) {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) return null;
+        return jenkins.getDescriptorByType(BapFtpPublisherPlugin.Descriptor.class).getConfiguration(hostName);
+    }
+
+    void retryLater(final Entry entry, final Exception e) {
+        synchronized (this) {
+            entry.failures++;
+            if (entry.failures >= MAX_ATTEMPTS) {
+                LOG.warn(Messages.log_deletionAbandoned(entry.path, entry.hostName, entry.failures), e);
+                done(entry);
+                return;
+            }
+            save();
+        }
+        LOG.warn(Messages.log_deletionFailed(entry.path, entry.hostName), e);
+        Timer.get().schedule(() -> submit(entry), RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void done(final Entry entry) {
+        if (pending.remove(entry)) save();
+    }
+
+    private void save() {
+        try {
+            file.write(new ArrayList<>(pending));
+        } catch (IOException e) {
+            LOG.warn(Messages.log_deletionQueueNotSaved(file), e);
+        }
+    }
+
+    static final class Entry {
+        private final String hostName;
+        private final String path;
+        private int failures;
+
+        Entry(final String hostName, final String path) {
+            this.hostName = hostName;
+            this.path = path;
+        }
+
+        String getHostName() {
+            return hostName;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        int getFailures() {
+            return failures;
+        }
+
+        @Override
+        public boolean equals(final Object that) {
+            if (this == that) return true;
+            if (that == null || getClass() != that.getClass()) return false;
+            final Entry other = (Entry) that;
+            return hostName.equals(other.hostName) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hostName, path);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+/**
+ * Publishes everything that a client publishes to other host configurations as well, each over its own session and
+ * thread.
+ * <p>
+ * Directory changes and transfer sets are replayed on every target in the order they were made on the client. Each
+ * file is only read once: the bytes that the client reads, or that are drained after it if it did not need them, are
+ * copied into a buffer for each target. A target that falls behind only holds up the client, and so the other
+ * targets, once its buffer is full.
+ */
+final class BapFtpFanOut {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final List<Target> targets = new ArrayList<>();
+    private final int bufferSize;
+
+    BapFtpFanOut(final List<BapFtpHostConfiguration> hostConfigs, final BPBuildInfo buildInfo, final int bufferSize) {
+        this.bufferSize = bufferSize;
+        for (BapFtpHostConfiguration hostConfig : hostConfigs) targets.add(new Target(hostConfig, buildInfo));
+    }
+
+    void changeToInitialDirectory() {
+        submit(BapFtpClient::changeToInitialDirectory);
+    }
+
+    /**
+     * The client has changed to the directory, which it may have had to make first, so a target that does not have it
+     * yet makes it.
+     */
+    void changeDirectory(final String directory) {
+        submit(client -> {
+            if (!client.changeDirectory(directory)
+                    && !(client.makeDirectory(directory) && client.changeDirectory(directory)))
+                throw new BapPublisherException(Messages.exception_fanOutDirectory(directory));
+        });
+    }
+
+    void deleteTree() {
+        submit(BapFtpClient::deleteTree);
+    }
+
+    void beginTransfers(final BapFtpTransfer transfer) {
+        submit(client -> client.beginTransfers(transfer));
+    }
+
+    /**
+     * Waits for every target to finish the transfer set, and fails if any target has failed.
+     */
+    void endTransfers(final BapFtpTransfer transfer) {
+        submit(client -> client.endTransfers(transfer));
+        awaitCompletion();
+    }
+
+    /**
+     * Waits for every target to finish what it has been given so far, and fails with the first target that failed.
+     */
+    void awaitCompletion() {
+        BapPublisherException failure = null;
+        for (Target target : targets) {
+            try {
+                target.awaitCompletion();
+            } catch (BapPublisherException bpe) {
+                if (failure == null) failure = bpe;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Queues the file on every target, reading from a buffer that is filled from the returned stream.
+     * {@link Tee#drain()} must be called once the client has finished with the stream, and {@link Tee#close()}
+     * always.
+     */
+    Tee tee(final BapFtpTransfer transfer, final FilePath filePath, final InputStream content) {
+        final List<Pipe> pipes = new ArrayList<>();
+        for (Target target : targets) {
+            final Pipe pipe = new Pipe(target);
+            pipes.add(pipe);
+            target.submit(client -> {
+                try {
+                    client.transferFile(transfer, filePath, pipe, false);
+                } finally {
+                    pipe.close();
+                }
+            });
+        }
+        return new Tee(content, pipes);
+    }
+
+    void close() {
+        for (Target target : targets) target.close();
+    }
+
+    private void submit(final Operation operation) {
+        for (Target target : targets) target.submit(operation);
+    }
+
+    private interface Operation {
+        void execute(BapFtpClient client) throws Exception;
+    }
+
+    private final class Target {
+        private final BapFtpHostConfiguration hostConfig;
+        private final BPBuildInfo buildInfo;
+        private final ExecutorService executor;
+        private BapFtpClient client;
+        private int pending;
+        private int buffered;
+        private Exception failure;
+
+        Target(final BapFtpHostConfiguration hostConfig, final BPBuildInfo buildInfo) {
+            this.hostConfig = hostConfig;
+            this.buildInfo = buildInfo;
+            executor = Executors.newSingleThreadExecutor(new NamingThreadFactory(
+                    new DaemonThreadFactory(), "Publish over FTP fan-out to " + hostConfig.getName()));
+        }
+
+        synchronized void submit(final Operation operation) {
+            pending++;
+            executor.execute(() -> {
+                try {
+                    if (!isFailed()) operation.execute(getClient());
+                } catch (Exception e) {
+                    failed(e);
+                } finally {
+                    completed();
+                }
+            });
+        }
+
+        private BapFtpClient getClient() {
+            if (client == null) {
+                client = hostConfig.createClient(buildInfo, false);
+                client.setConcurrentTransfers(null);
+            }
+            return client;
+        }
+
+        private synchronized boolean isFailed() {
+            return failure != null;
+        }
+
+        private synchronized void failed(final Exception e) {
+            if (failure == null) failure = e;
+            notifyAll();
+        }
+
+        private synchronized void completed() {
+            pending--;
+            notifyAll();
+        }
+
+        synchronized void awaitCompletion() {
+            try {
+                while (pending > 0) wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BapPublisherException(Messages.exception_fanOutInterrupted(), ie);
+            }
+            if (failure != null)
+                throw new BapPublisherException(
+                        Messages.exception_fanOutFailed(hostConfig.getName(), failure.getLocalizedMessage()), failure);
+        }
+
+        void close() {
+            executor.execute(() -> {
+                if (client != null) client.disconnectQuietly();
+            });
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The client's view of the file, which copies every byte it reads to the targets.
+     */
+    static final class Tee extends InputStream {
+        private final InputStream content;
+        private final List<Pipe> pipes;
+        private boolean drained;
+
+        private Tee(final InputStream content, final List<Pipe> pipes) {
+            this.content = content;
+            this.pipes = pipes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int read = content.read(buffer, offset, length);
+            if (read > 0 && isWanted()) {
+                final byte[] chunk = new byte[read];
+                System.arraycopy(buffer, offset, chunk, 0, read);
+                for (Pipe pipe : pipes) pipe.write(chunk);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long bytes) throws IOException {
+            final byte[] buffer = new byte[(int) Math.min(bytes, CHUNK_SIZE)];
+            final int read = read(buffer, 0, buffer.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return content.available();
+        }
+
+        /**
+         * Reads what the client left of the file, unless no target still wants it.
+         */
+        void drain() throws IOException {
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            while (isWanted() && read(buffer, 0, buffer.length) >= 0) {
+                // the bytes are copied to the targets as they are read
+            }
+            drained = true;
+        }
+
+        private boolean isWanted() {
+            for (Pipe pipe : pipes) if (pipe.isOpen()) return true;
+            return false;
+        }
+
+        /**
+         * Ends the file for the targets. If it was not drained, the client failed, and the targets fail with it.
+         */
+        @Override
+        public void close() {
+            final IOException failure = drained ? null : new IOException(Messages.exception_fanOutSourceFailed());
+            for (Pipe pipe : pipes) pipe.end(failure);
+        }
+    }
+
+    /**
+     * The bytes of one file for one target. The pipes of a target share its buffer, so the client can run ahead of the
+     * target into the following files until the buffer is full.
+     */
+    private final class Pipe extends InputStream {
+        private final Target target;
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+        private byte[] chunk;
+        private int position;
+        private boolean ended;
+        private boolean closed;
+        private IOException failure;
+
+        Pipe(final Target target) {
+            this.target = target;
+        }
+
+        void write(final byte[] data) throws IOException {
+            synchronized (target) {
+                try {
+                    while (isOpen() && target.buffered > 0 && target.buffered + data.length > bufferSize)
+                        target.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(ie.getMessage());
+                }
+                if (!isOpen()) return;
+                chunks.add(data);
+                target.buffered += data.length;
+                target.notifyAll();
+            }
+        }
+
+        boolean isOpen() {
+            synchronized (target) {
+                return !closed && target.failure == null;
+            }
+        }
+
+        void end(final IOException endFailure) {
+            synchronized (target) {
+                ended = true;
+                failure = endFailure;
+                target.notifyAll();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (length == 0) return 0;
+            synchronized (target) {
+                try {
+                    while (chunk == null || position == chunk.length) {
+                        if (!chunks.isEmpty()) {
+                            chunk = chunks.poll();
+                            position = 0;
+                            target.buffered -= chunk.length;
+                            target.notifyAll();
+                        } else if (ended) {
+                            if (failure != null) throw failure;
+                            return -1;
+                        } else {
+                            target.wait();
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(ie.getMessage());
+                }
+                final int read = Math.min(length, chunk.length - position);
+                System.arraycopy(chunk, position, buffer, offset, read);
+                position += read;
+                return read;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (target) {
+                closed = true;
+                for (byte[] unread : chunks) target.buffered -= unread.length;
+                chunks.clear();
+                target.notifyAll();
+            }
+        }
+    }
+}
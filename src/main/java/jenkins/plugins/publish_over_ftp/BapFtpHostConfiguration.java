@@ -27,16 +27,13 @@ package jenkins.plugins.publish_over_ftp;
 import hudson.Util;
 import hudson.model.Describable;
 import hudson.util.Secret;
-import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.security.GeneralSecurityException;
-import java.security.KeyStore;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
 import jenkins.model.Jenkins;
 import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPHostConfiguration;
@@ -51,7 +48,6 @@ import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPReply;
 import org.apache.commons.net.ftp.FTPSClient;
-import org.apache.commons.net.util.TrustManagerUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
@@ -63,6 +59,9 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
 
     public static final int DEFAULT_PORT = FTP.DEFAULT_PORT;
     public static final int DEFAULT_TIMEOUT = 300000;
+    public static final int DEFAULT_FAN_OUT_BUFFER_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENT_THRESHOLD = 100 * 1024 * 1024;
+    public static final int DEFAULT_MODE_Z_COMPRESSION_LEVEL = 6;
 
     private int timeout;
     private boolean useActiveData;
@@ -72,6 +71,21 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
     private boolean useFtpOverTls;
     private boolean useImplicitTls;
     private String trustedCertificate;
+    private int parallelConnections;
+    private boolean useConnectionPool;
+    private boolean reuseTlsSession;
+    private int bufferSize;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private boolean tcpNoDelay;
+    private boolean useUploadManifest;
+    private boolean useModeZ;
+    private int modeZCompressionLevel = DEFAULT_MODE_Z_COMPRESSION_LEVEL;
+    private boolean deleteInBackground;
+    private String fanOutHosts;
+    private int fanOutBufferSize;
+    private int uploadSegments;
+    private int segmentThreshold;
 
     @DataBoundConstructor
     public BapFtpHostConfiguration(
@@ -109,6 +123,81 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
         this.trustedCertificate = Util.fixEmptyAndTrim(trustedCertificate);
     }
 
+    @DataBoundSetter
+    public void setParallelConnections(final int parallelConnections) {
+        this.parallelConnections = parallelConnections;
+    }
+
+    @DataBoundSetter
+    public void setUseConnectionPool(final boolean useConnectionPool) {
+        this.useConnectionPool = useConnectionPool;
+    }
+
+    @DataBoundSetter
+    public void setReuseTlsSession(final boolean reuseTlsSession) {
+        this.reuseTlsSession = reuseTlsSession;
+    }
+
+    @DataBoundSetter
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @DataBoundSetter
+    public void setSendBufferSize(final int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    @DataBoundSetter
+    public void setReceiveBufferSize(final int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    @DataBoundSetter
+    public void setTcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    @DataBoundSetter
+    public void setUseUploadManifest(final boolean useUploadManifest) {
+        this.useUploadManifest = useUploadManifest;
+    }
+
+    @DataBoundSetter
+    public void setUseModeZ(final boolean useModeZ) {
+        this.useModeZ = useModeZ;
+    }
+
+    @DataBoundSetter
+    public void setModeZCompressionLevel(final int modeZCompressionLevel) {
+        this.modeZCompressionLevel = modeZCompressionLevel;
+    }
+
+    @DataBoundSetter
+    public void setDeleteInBackground(final boolean deleteInBackground) {
+        this.deleteInBackground = deleteInBackground;
+    }
+
+    @DataBoundSetter
+    public void setFanOutHosts(final String fanOutHosts) {
+        this.fanOutHosts = Util.fixEmptyAndTrim(fanOutHosts);
+    }
+
+    @DataBoundSetter
+    public void setFanOutBufferSize(final int fanOutBufferSize) {
+        this.fanOutBufferSize = fanOutBufferSize;
+    }
+
+    @DataBoundSetter
+    public void setUploadSegments(final int uploadSegments) {
+        this.uploadSegments = uploadSegments;
+    }
+
+    @DataBoundSetter
+    public void setSegmentThreshold(final int segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+    }
+
     @Override
     protected final String getPassword() {
         return super.getPassword();
@@ -154,12 +243,146 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
         return trustedCertificate;
     }
 
+    public int getParallelConnections() {
+        return parallelConnections;
+    }
+
+    public boolean isUseConnectionPool() {
+        return useConnectionPool;
+    }
+
+    public boolean isReuseTlsSession() {
+        return reuseTlsSession;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public boolean isUseUploadManifest() {
+        return useUploadManifest;
+    }
+
+    public boolean isUseModeZ() {
+        return useModeZ;
+    }
+
+    public int getModeZCompressionLevel() {
+        return modeZCompressionLevel;
+    }
+
+    public static boolean isValidCompressionLevel(final int level) {
+        return level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+    }
+
+    private int getEffectiveCompressionLevel() {
+        return isValidCompressionLevel(modeZCompressionLevel)
+                ? modeZCompressionLevel
+                : DEFAULT_MODE_Z_COMPRESSION_LEVEL;
+    }
+
+    public boolean isDeleteInBackground() {
+        return deleteInBackground;
+    }
+
+    public String getFanOutHosts() {
+        return fanOutHosts;
+    }
+
+    public int getFanOutBufferSize() {
+        return fanOutBufferSize;
+    }
+
+    public int getUploadSegments() {
+        return uploadSegments;
+    }
+
+    public int getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
     @Override
     public BapFtpClient createClient(final BPBuildInfo buildInfo) {
+        return createClient(buildInfo, true);
+    }
+
+    BapFtpClient createClient(final BPBuildInfo buildInfo, final boolean fanOut) {
+        return createClient(buildInfo, fanOut, BapFtpPublishJournal.get(buildInfo, getName()).startAttempt());
+    }
+
+    /**
+     * The sessions that publish part of an attempt for its client, such as those of the transfer sets that run in
+     * parallel, are created in the same attempt, so that they do not skip the files stored earlier in it.
+     */
+    BapFtpClient createClient(final BPBuildInfo buildInfo, final boolean fanOut, final int attempt) {
+        final List<BapFtpHostConfiguration> fanOutConfigs = fanOut ? getFanOutConfigurations() : List.of();
+        final BapFtpClient client = createSession(buildInfo);
+        if (!fanOutConfigs.isEmpty())
+            client.setFanOut(new BapFtpFanOut(
+                    fanOutConfigs,
+                    buildInfo,
+                    fanOutBufferSize > 0 ? fanOutBufferSize : DEFAULT_FAN_OUT_BUFFER_SIZE));
+        client.setPublishJournal(BapFtpPublishJournal.get(buildInfo, getName()), attempt);
+        client.setConcurrentTransfers(new BapFtpConcurrentTransfers(this, buildInfo, attempt));
+        if (deleteInBackground && buildInfo.get(BPBuildInfo.OVERRIDE_CREDENTIALS_CONTEXT_KEY) == null) {
+            final BapFtpDeletionQueue deletionQueue = BapFtpDeletionQueue.get();
+            if (deletionQueue != null) client.setDeletionQueue(deletionQueue, getName());
+        }
+        if (parallelConnections > 1)
+            client.setParallelUploader(new BapFtpParallelUploader(this, buildInfo, parallelConnections));
+        if (uploadSegments > 1)
+            client.setSegmentedUpload(new BapFtpSegmentedUpload(
+                    this,
+                    buildInfo,
+                    segmentThreshold > 0 ? segmentThreshold : DEFAULT_SEGMENT_THRESHOLD,
+                    uploadSegments));
+        if (useUploadManifest)
+            client.setUploadManifestFile(BapFtpUploadManifest.getFile(
+                    getHostnameTrimmed(), getPort(), getLoginUsername(buildInfo), client.getAbsoluteRemoteRoot()));
+        return client;
+    }
+
+    /**
+     * The host configurations named in fan-out hosts. Those are only published to by this host, so their own fan-out
+     * hosts are not followed.
+     */
+    private List<BapFtpHostConfiguration> getFanOutConfigurations() {
+        if (fanOutHosts == null) return List.of();
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        final List<BapFtpHostConfiguration> configs = new ArrayList<>();
+        for (String name : fanOutHosts.split("\\s*,\\s*")) {
+            final BapFtpHostConfiguration config = jenkins == null
+                    ? null
+                    : jenkins.getDescriptorByType(BapFtpPublisherPlugin.Descriptor.class)
+                            .getConfiguration(name);
+            if (config == null) throw new BapPublisherException(Messages.exception_fanOutHostNotFound(name));
+            if (!config.getName().equals(getName()) && !configs.contains(config)) configs.add(config);
+        }
+        return configs;
+    }
+
+    BapFtpClient createSession(final BPBuildInfo buildInfo) {
         final BapFtpClient client;
         try {
+            if (useConnectionPool) {
+                final BapFtpClient pooled = borrowSession(buildInfo);
+                if (pooled != null) return pooled;
+            }
             client = new BapFtpClient(createFTPClient(), buildInfo);
             init(client);
+            if (useConnectionPool) client.setConnectionPool(BapFtpConnectionPool.get(), createPoolKey(buildInfo));
         } catch (Exception e) {
             throw new BapPublisherException(
                     Messages.exception_failedToCreateClient(e.getClass().getName() + ": " + e.getLocalizedMessage()),
@@ -168,50 +391,81 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
         return client;
     }
 
+    public static void clearCachedTrustManagers() {
+        BapFtpTrustManagers.clear();
+    }
+
     public FTPClient createFTPClient() throws GeneralSecurityException, FileNotFoundException, IOException {
         if (useFtpOverTls) {
-            FTPSClient c = new FTPSClient(useImplicitTls);
-
-            KeyStore ts = KeyStore.getInstance(KeyStore.getDefaultType());
-            String trustStorePath = System.getProperty("javax.net.ssl.trustStore");
-            if (trustStorePath != null) {
-                String trustStorePassword = System.getProperty("javax.net.ssl.trustStorePassword");
-                try (FileInputStream stream = new FileInputStream(trustStorePath)) {
-                    if (trustStorePassword != null) {
-                        ts.load(stream, trustStorePassword.toCharArray());
-                    } else {
-                        ts.load(stream, null);
-                    }
-                }
-            } else {
-                ts.load(null);
+            if (reuseTlsSession)
+                return new BapFtpsClient(useImplicitTls, BapFtpTrustManagers.getSslContext(trustedCertificate), true);
+            FTPSClient c = new BapFtpsClient(useImplicitTls, null, false);
+            c.setTrustManager(BapFtpTrustManagers.get(trustedCertificate));
+            return c;
+        }
+        return new BapFtpChannelClient();
+    }
+
+    private BapFtpClient borrowSession(final BPBuildInfo buildInfo) {
+        final BapFtpConnectionPool pool = BapFtpConnectionPool.get();
+        final BapFtpConnectionPool.Key key = createPoolKey(buildInfo);
+        BapFtpConnectionPool.Session session = pool.borrow(key);
+        while (session != null) {
+            final BapFtpClient client = new BapFtpClient(session.getFtpClient(), buildInfo);
+            client.setDisableMakeNestedDirs(disableMakeNestedDirs);
+            if (useModeZ) client.setModeZ(getEffectiveCompressionLevel());
+            if (resetToRoot(client, session.getAbsoluteRemoteRoot())) {
+                client.setConnectionPool(pool, key);
+                addCommandPrinter(client);
+                return client;
             }
+            client.disconnectQuietly();
+            session = pool.borrow(key);
+        }
+        return null;
+    }
 
-            if (trustedCertificate != null) {
-                InputStream certStream = new ByteArrayInputStream(trustedCertificate.getBytes());
-                X509Certificate x509certificate = (X509Certificate)
-                        CertificateFactory.getInstance("X.509").generateCertificate(certStream);
-                ts.setCertificateEntry(x509certificate.getSubjectDN().getName(), x509certificate);
-            }
+    private boolean resetToRoot(final BapFtpClient client, final String absoluteRemoteRoot) {
+        client.setAbsoluteRemoteRoot(absoluteRemoteRoot);
+        try {
+            return client.changeToInitialDirectory();
+        } catch (BapPublisherException bpe) {
+            return false;
+        }
+    }
 
-            c.setTrustManager(TrustManagerUtils.getDefaultTrustManager(ts));
+    private BapFtpConnectionPool.Key createPoolKey(final BPBuildInfo buildInfo) {
+        return new BapFtpConnectionPool.Key(this, getLoginUsername(buildInfo), getLoginPassword(buildInfo));
+    }
 
-            return c;
-        }
-        return new FTPClient();
+    private String getLoginUsername(final BPBuildInfo buildInfo) {
+        final BapFtpCredentials overrideCredentials =
+                (BapFtpCredentials) buildInfo.get(BPBuildInfo.OVERRIDE_CREDENTIALS_CONTEXT_KEY);
+        return overrideCredentials == null ? getUsername() : overrideCredentials.getUsername();
+    }
+
+    private String getLoginPassword(final BPBuildInfo buildInfo) {
+        final BapFtpCredentials overrideCredentials =
+                (BapFtpCredentials) buildInfo.get(BPBuildInfo.OVERRIDE_CREDENTIALS_CONTEXT_KEY);
+        return overrideCredentials == null ? getPassword() : Secret.toString(overrideCredentials.getPassword());
+    }
+
+    private PrintCommandListener addCommandPrinter(final BapFtpClient client) {
+        final BPBuildInfo buildInfo = client.getBuildInfo();
+        if (!buildInfo.isVerbose()) return null;
+        final BapFtpCommandCounter commandPrinter =
+                new BapFtpCommandCounter(new PrintWriter(buildInfo.getListener().getLogger()));
+        client.getFtpClient().addProtocolCommandListener(commandPrinter);
+        client.setCommandListener(commandPrinter);
+        return commandPrinter;
     }
 
     private void init(final BapFtpClient client) throws IOException {
         final FTPClient ftpClient = client.getFtpClient();
-        final BPBuildInfo buildInfo = client.getBuildInfo();
         client.setDisableMakeNestedDirs(disableMakeNestedDirs);
         client.setDisableRemoteVerification(disableRemoteVerification);
-        PrintCommandListener commandPrinter = null;
-        if (buildInfo.isVerbose()) {
-            commandPrinter = new PrintCommandListener(
-                    new PrintWriter(buildInfo.getListener().getLogger()));
-            ftpClient.addProtocolCommandListener(commandPrinter);
-        }
+        if (useModeZ) client.setModeZ(getEffectiveCompressionLevel());
+        final PrintCommandListener commandPrinter = addCommandPrinter(client);
         configureFTPClient(ftpClient);
         connect(client);
 
@@ -221,10 +475,19 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
         setRootDirectoryInClient(client);
     }
 
-    private void configureFTPClient(final FTPClient ftpClient) {
+    private void configureFTPClient(final FTPClient ftpClient) throws IOException {
         ftpClient.setDefaultTimeout(timeout);
         ftpClient.setDataTimeout(timeout);
         if (controlEncoding != null) ftpClient.setControlEncoding(controlEncoding);
+        if (bufferSize > 0) ftpClient.setBufferSize(bufferSize);
+        if (sendBufferSize > 0) {
+            ftpClient.setSendBufferSize(sendBufferSize);
+            ftpClient.setSendDataSocketBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            ftpClient.setReceiveBufferSize(receiveBufferSize);
+            ftpClient.setReceieveDataSocketBufferSize(receiveBufferSize);
+        }
     }
 
     private void setRootDirectoryInClient(final BapFtpClient client) throws IOException {
@@ -250,12 +513,8 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
             buildInfo.println(Messages.console_logInHidingCommunication());
             ftpClient.removeProtocolCommandListener(commandListener);
         }
-        final BapFtpCredentials overrideCredentials =
-                (BapFtpCredentials) buildInfo.get(BPBuildInfo.OVERRIDE_CREDENTIALS_CONTEXT_KEY);
-        final String username = overrideCredentials == null ? getUsername() : overrideCredentials.getUsername();
-        final String password =
-                overrideCredentials == null ? getPassword() : Secret.toString(overrideCredentials.getPassword());
-        if (!ftpClient.login(username, password)) {
+        final String username = getLoginUsername(buildInfo);
+        if (!ftpClient.login(username, getLoginPassword(buildInfo))) {
             exception(client, Messages.exception_logInFailed(username));
         }
         if (commandListener != null) {
@@ -267,6 +526,7 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
     private void connect(final BapFtpClient client) throws IOException {
         final FTPClient ftpClient = client.getFtpClient();
         ftpClient.connect(getHostnameTrimmed(), getPort());
+        if (tcpNoDelay) ftpClient.setTcpNoDelay(true);
         final int responseCode = ftpClient.getReplyCode();
         if (!FTPReply.isPositiveCompletion(responseCode)) {
             exception(client, Messages.exception_connectFailed(getHostnameTrimmed(), getPort(), responseCode));
@@ -300,14 +560,54 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
         return super.addToHashCode(builder)
                 .append(useActiveData)
                 .append(timeout)
-                .append(controlEncoding);
+                .append(controlEncoding)
+                .append(disableMakeNestedDirs)
+                .append(disableRemoteVerification)
+                .append(useFtpOverTls)
+                .append(useImplicitTls)
+                .append(trustedCertificate)
+                .append(reuseTlsSession)
+                .append(parallelConnections)
+                .append(useConnectionPool)
+                .append(bufferSize)
+                .append(sendBufferSize)
+                .append(receiveBufferSize)
+                .append(tcpNoDelay)
+                .append(useUploadManifest)
+                .append(useModeZ)
+                .append(modeZCompressionLevel)
+                .append(deleteInBackground)
+                .append(fanOutHosts)
+                .append(fanOutBufferSize)
+                .append(uploadSegments)
+                .append(segmentThreshold);
     }
 
     protected EqualsBuilder addToEquals(final EqualsBuilder builder, final BapFtpHostConfiguration that) {
         return super.addToEquals(builder, that)
                 .append(useActiveData, that.useActiveData)
                 .append(timeout, that.timeout)
-                .append(controlEncoding, that.controlEncoding);
+                .append(controlEncoding, that.controlEncoding)
+                .append(disableMakeNestedDirs, that.disableMakeNestedDirs)
+                .append(disableRemoteVerification, that.disableRemoteVerification)
+                .append(useFtpOverTls, that.useFtpOverTls)
+                .append(useImplicitTls, that.useImplicitTls)
+                .append(trustedCertificate, that.trustedCertificate)
+                .append(reuseTlsSession, that.reuseTlsSession)
+                .append(parallelConnections, that.parallelConnections)
+                .append(useConnectionPool, that.useConnectionPool)
+                .append(bufferSize, that.bufferSize)
+                .append(sendBufferSize, that.sendBufferSize)
+                .append(receiveBufferSize, that.receiveBufferSize)
+                .append(tcpNoDelay, that.tcpNoDelay)
+                .append(useUploadManifest, that.useUploadManifest)
+                .append(useModeZ, that.useModeZ)
+                .append(modeZCompressionLevel, that.modeZCompressionLevel)
+                .append(deleteInBackground, that.deleteInBackground)
+                .append(fanOutHosts, that.fanOutHosts)
+                .append(fanOutBufferSize, that.fanOutBufferSize)
+                .append(uploadSegments, that.uploadSegments)
+                .append(segmentThreshold, that.segmentThreshold);
     }
 
     @Override
@@ -315,7 +615,26 @@ public class BapFtpHostConfiguration extends BPHostConfiguration<BapFtpClient, O
         return super.addToToString(builder)
                 .append("useActiveData", useActiveData)
                 .append("timeout", timeout)
-                .append("controlEncoding", controlEncoding);
+                .append("controlEncoding", controlEncoding)
+                .append("disableMakeNestedDirs", disableMakeNestedDirs)
+                .append("disableRemoteVerification", disableRemoteVerification)
+                .append("useFtpOverTls", useFtpOverTls)
+                .append("useImplicitTls", useImplicitTls)
+                .append("reuseTlsSession", reuseTlsSession)
+                .append("parallelConnections", parallelConnections)
+                .append("useConnectionPool", useConnectionPool)
+                .append("bufferSize", bufferSize)
+                .append("sendBufferSize", sendBufferSize)
+                .append("receiveBufferSize", receiveBufferSize)
+                .append("tcpNoDelay", tcpNoDelay)
+                .append("useUploadManifest", useUploadManifest)
+                .append("useModeZ", useModeZ)
+                .append("modeZCompressionLevel", modeZCompressionLevel)
+                .append("deleteInBackground", deleteInBackground)
+                .append("fanOutHosts", fanOutHosts)
+                .append("fanOutBufferSize", fanOutBufferSize)
+                .append("uploadSegments", uploadSegments)
+                .append("segmentThreshold", segmentThreshold);
     }
 
     @Override
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+/**
+ * Runs the publishers of a plugin at the same time, each as a plugin of its own, and no more than the given number at
+ * once.
+ * <p>
+ * Each publisher writes to a log of its own, spooled to a temporary file and copied into the build log in one piece
+ * when the publisher has finished, so that the build log has a section for each publisher. Once a publisher has
+ * failed, the publishers that have not started yet are skipped unless the plugin continues on error. Each publisher
+ * is run by the instance config of its own plugin, so that its result is its own rather than read back from the
+ * build, which the other publishers share and which may have been unstable before any of them ran. The results are
+ * combined into the build at the end, and the build is failed if a publisher failed and the plugin fails on error.
+ */
+final class BapFtpParallelPublishers {
+
+    private final BapFtpPublisherPlugin plugin;
+    private final int parallelism;
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    BapFtpParallelPublishers(final BapFtpPublisherPlugin plugin, final int parallelism) {
+        this.plugin = plugin;
+        this.parallelism = parallelism;
+    }
+
+    void perform(final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener)
+            throws InterruptedException, IOException {
+        final List<BapFtpPublisher> publishers = plugin.getPublishers();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(parallelism, publishers.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Publish over FTP publisher"));
+        Result result = Result.SUCCESS;
+        Throwable failure = null;
+        try {
+            final List<Future<Result>> running = new ArrayList<>();
+            for (BapFtpPublisher publisher : publishers)
+                running.add(executor.submit(() -> perform(publisher, run, workspace, launcher, listener)));
+            for (Future<Result> publish : running) {
+                try {
+                    final Result published = publish.get();
+                    if (published != null) result = result.combine(published);
+                } catch (ExecutionException ee) {
+                    if (failure == null) failure = ee.getCause();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failed.get() && plugin.isFailOnError()) result = Result.FAILURE;
+        run.setResult(run.getResult() == null ? result : result.combine(run.getResult()));
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof InterruptedException) throw (InterruptedException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure != null) throw new IOException(failure);
+    }
+
+    private Result perform(
+            final BapFtpPublisher publisher,
+            final Run<?, ?> run,
+            final FilePath workspace,
+            final Launcher launcher,
+            final TaskListener listener)
+            throws InterruptedException, IOException {
+        if (failed.get() && !plugin.isContinueOnError()) return null;
+        final File log = Files.createTempFile("publish-over-ftp", ".log").toFile();
+        try {
+            Result result = null;
+            final StreamTaskListener section = new StreamTaskListener(new FileOutputStream(log), run.getCharset());
+            try {
+                final BPBuildInfo buildInfo = createBuildInfo(run, workspace, launcher, section);
+                result = createPlugin(publisher).getDelegate().perform(buildInfo);
+                return result;
+            } finally {
+                if (result == null || result.isWorseThan(Result.SUCCESS)) failed.set(true);
+                section.close();
+                final PrintStream logger = listener.getLogger();
+                synchronized (logger) {
+                    Files.copy(log.toPath(), logger);
+                    logger.flush();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(log.toPath());
+        }
+    }
+
+    /**
+     * The build info is made by publish-over, the same way as for a plugin that is not run in parallel, but with the
+     * log of the publisher.
+     */
+    private BPBuildInfo createBuildInfo(
+            final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener section)
+            throws InterruptedException, IOException {
+        final BuildInfoProbe probe = new BuildInfoProbe(plugin);
+        probe.perform(run, workspace, launcher, section);
+        if (probe.buildInfo == null) throw new BapPublisherException(Messages.exception_parallelBuildInfo());
+        return probe.buildInfo;
+    }
+
+    private BapFtpPublisherPlugin createPlugin(final BapFtpPublisher publisher) {
+        final ArrayList<BapFtpPublisher> publishers = new ArrayList<>();
+        publishers.add(publisher);
+        return new BapFtpPublisherPlugin(
+                publishers,
+                plugin.isContinueOnError(),
+                false,
+                plugin.isAlwaysPublishFromMaster(),
+                plugin.getMasterNodeName(),
+                plugin.getParamPublish());
+    }
+
+    /**
+     * A plugin without publishers, which keeps the build info publish-over hands it before publishing.
+     */
+    private static final class BuildInfoProbe extends BapFtpPublisherPlugin {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient BPBuildInfo buildInfo;
+
+        BuildInfoProbe(final BapFtpPublisherPlugin plugin) {
+            super(
+                    new ArrayList<>(),
+                    false,
+                    false,
+                    plugin.isAlwaysPublishFromMaster(),
+                    plugin.getMasterNodeName(),
+                    null);
+        }
+
+        @Override
+        protected void fixup(final Run<?, ?> build, final BPBuildInfo buildInfo) {
+            this.buildInfo = buildInfo;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Uploads files, and deletes them when the remote directory is cleaned, over several logged in sessions to the same
+ * host.
+ * <p>
+ * The sessions are opened lazily, each by its own worker thread, and every worker takes the next task from a shared
+ * queue as soon as it has finished the previous one, so a worker stuck on a large file does not hold up the rest.
+ * Directories are still created and removed by the owning {@link BapFtpClient}.
+ */
+final class BapFtpParallelUploader {
+
+    private static final Log LOG = LogFactory.getLog(BapFtpParallelUploader.class);
+
+    private final BapFtpHostConfiguration hostConfig;
+    private final BPBuildInfo buildInfo;
+    private final int connections;
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+    private ExecutorService executor;
+    private int pending;
+    private Exception failure;
+
+    BapFtpParallelUploader(
+            final BapFtpHostConfiguration hostConfig, final BPBuildInfo buildInfo, final int connections) {
+        this.hostConfig = hostConfig;
+        this.buildInfo = buildInfo;
+        this.connections = connections;
+    }
+
+    int getConnections() {
+        return connections;
+    }
+
+    void upload(
+            final BapFtpTransfer transfer, final String directory, final FilePath filePath, final Runnable onStored) {
+        submit(new Upload(transfer, directory, filePath, onStored));
+    }
+
+    void delete(final String path) {
+        submit(new Delete(path));
+    }
+
+    private void submit(final Task task) {
+        synchronized (this) {
+            throwIfFailed();
+            if (executor == null) start();
+            pending++;
+        }
+        queue.add(task);
+    }
+
+    void awaitCompletion() {
+        synchronized (this) {
+            try {
+                while (pending > 0 && failure == null) wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BapPublisherException(Messages.exception_parallelUploadInterrupted(), ie);
+            }
+            throwIfFailed();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (executor == null) return;
+            queue.clear();
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void start() {
+        executor = Executors.newFixedThreadPool(
+                connections, new NamingThreadFactory(new DaemonThreadFactory(), "Publish over FTP upload"));
+        for (int i = 0; i < connections; i++) executor.execute(new Worker());
+    }
+
+    private void throwIfFailed() {
+        if (failure != null)
+            throw new BapPublisherException(
+                    Messages.exception_parallelUploadFailed(failure.getLocalizedMessage()), failure);
+    }
+
+    private synchronized void completed() {
+        pending--;
+        notifyAll();
+    }
+
+    private synchronized void failed(final Exception e) {
+        if (failure == null) failure = e;
+        queue.clear();
+        notifyAll();
+    }
+
+    private interface Task {
+        void execute(Worker worker) throws Exception;
+    }
+
+    private static final class Upload implements Task {
+        private final BapFtpTransfer transfer;
+        private final String directory;
+        private final FilePath filePath;
+        private final Runnable onStored;
+
+        Upload(
+                final BapFtpTransfer transfer,
+                final String directory,
+                final FilePath filePath,
+                final Runnable onStored) {
+            this.transfer = transfer;
+            this.directory = directory;
+            this.filePath = filePath;
+            this.onStored = onStored;
+        }
+
+        public void execute(final Worker worker) throws Exception {
+            worker.store(this);
+        }
+    }
+
+    private static final class Delete implements Task {
+        private final String path;
+
+        Delete(final String path) {
+            this.path = path;
+        }
+
+        public void execute(final Worker worker) throws IOException {
+            worker.getSession().deleteFile(path);
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private BapFtpClient session;
+        private BapFtpTransfer currentTransfer;
+
+        public void run() {
+            try {
+                while (true) {
+                    final Task task = queue.take();
+                    try {
+                        task.execute(this);
+                        completed();
+                    } catch (Exception e) {
+                        failed(e);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                LOG.debug("Parallel upload worker interrupted", ie);
+            } finally {
+                if (session != null) session.disconnectQuietly();
+            }
+        }
+
+        private BapFtpClient getSession() {
+            if (session == null) session = hostConfig.createSession(buildInfo);
+            return session;
+        }
+
+        private void store(final Upload upload) throws Exception {
+            final BapFtpClient client = getSession();
+            if (!upload.directory.equals(client.getCurrentDirectory()) && !client.changeDirectory(upload.directory))
+                throw new BapPublisherException(Messages.exception_cwdException(upload.directory));
+            if (upload.transfer != currentTransfer) {
+                client.beginStoring(upload.transfer);
+                currentTransfer = upload.transfer;
+            }
+            try (InputStream content = upload.filePath.read()) {
+                client.store(upload.transfer, upload.filePath, content, true);
+            }
+            if (upload.onStored != null) upload.onStored.run();
+        }
+    }
+}
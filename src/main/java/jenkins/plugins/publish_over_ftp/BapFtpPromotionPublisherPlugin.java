@@ -45,6 +45,7 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 @SuppressWarnings("PMD.LooseCoupling") // serializable
 public class BapFtpPromotionPublisherPlugin extends Notifier implements SimpleBuildStep {
@@ -67,6 +68,15 @@ public class BapFtpPromotionPublisherPlugin extends Notifier implements SimpleBu
         return delegate;
     }
 
+    public int getParallelPublishers() {
+        return delegate.getParallelPublishers();
+    }
+
+    @DataBoundSetter
+    public void setParallelPublishers(final int parallelPublishers) {
+        delegate.setParallelPublishers(parallelPublishers);
+    }
+
     @Override
     public void perform(
             @NonNull Run<?, ?> run, @NonNull FilePath ws, @NonNull Launcher launcher, @NonNull TaskListener listener)
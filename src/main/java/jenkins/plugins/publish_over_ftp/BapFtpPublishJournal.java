@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.plugins.publish_over.BPBuildInfo;
+
+/**
+ * The files stored on one host during a publish, kept in the build info so that when the publisher is retried the
+ * files already stored by an earlier attempt are not uploaded again.
+ * <p>
+ * Every try of the publisher starts a new attempt, which the sessions it opens for itself share. A file is only
+ * skipped if it was stored by an earlier attempt, so a transfer set that overwrites a file stored by another transfer
+ * set in the same attempt still does. A tree that is deleted is forgotten, so its files are stored again.
+ */
+final class BapFtpPublishJournal implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final String KEY_PREFIX = BapFtpPublishJournal.class.getName() + ".";
+
+    private final Map<String, Integer> stored = new ConcurrentHashMap<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    static BapFtpPublishJournal get(final BPBuildInfo buildInfo, final String hostName) {
+        final String key = KEY_PREFIX + hostName;
+        synchronized (buildInfo) {
+            BapFtpPublishJournal journal = (BapFtpPublishJournal) buildInfo.get(key);
+            if (journal == null) {
+                journal = new BapFtpPublishJournal();
+                buildInfo.put(key, journal);
+            }
+            return journal;
+        }
+    }
+
+    int startAttempt() {
+        return attempts.incrementAndGet();
+    }
+
+    boolean isStoredBefore(final String path, final int attempt) {
+        final Integer storedBy = stored.get(path);
+        return storedBy != null && storedBy < attempt;
+    }
+
+    void stored(final String path, final int attempt) {
+        stored.put(path, attempt);
+    }
+
+    void forgetBelow(final String root) {
+        final String prefix = root.endsWith("/") ? root : root + "/";
+        stored.keySet().removeIf(path -> path.equals(root) || path.startsWith(prefix));
+    }
+}
@@ -24,7 +24,14 @@
 
 package jenkins.plugins.publish_over_ftp;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import jenkins.model.Jenkins;
@@ -37,12 +44,15 @@ import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 @SuppressWarnings("PMD.LooseCoupling") // serializable
 public class BapFtpPublisherPlugin extends BPPlugin<BapFtpPublisher, BapFtpClient, Object> {
 
     private static final long serialVersionUID = 1L;
 
+    private int parallelPublishers;
+
     @DataBoundConstructor
     public BapFtpPublisherPlugin(
             final ArrayList<BapFtpPublisher> publishers,
@@ -85,22 +95,51 @@ public class BapFtpPublisherPlugin extends BPPlugin<BapFtpPublisher, BapFtpClien
         return (BapFtpParamPublish) getDelegate().getParamPublish();
     }
 
+    public int getParallelPublishers() {
+        return parallelPublishers;
+    }
+
+    @DataBoundSetter
+    public void setParallelPublishers(final int parallelPublishers) {
+        this.parallelPublishers = parallelPublishers;
+    }
+
+    @Override
+    public void perform(
+            @NonNull final Run<?, ?> run,
+            @NonNull final FilePath workspace,
+            @NonNull final Launcher launcher,
+            @NonNull final TaskListener listener)
+            throws InterruptedException, IOException {
+        if (parallelPublishers > 1
+                && getPublishers().size() > 1
+                && (run.getResult() == null || run.getResult().isBetterOrEqualTo(Result.UNSTABLE))) {
+            new BapFtpParallelPublishers(this, parallelPublishers).perform(run, workspace, launcher, listener);
+        } else {
+            super.perform(run, workspace, launcher, listener);
+        }
+    }
+
     @Override
     public boolean equals(final Object that) {
         if (this == that) return true;
         if (that == null || getClass() != that.getClass()) return false;
 
-        return addToEquals(new EqualsBuilder(), (BapFtpPublisherPlugin) that).isEquals();
+        final BapFtpPublisherPlugin other = (BapFtpPublisherPlugin) that;
+        return addToEquals(new EqualsBuilder(), other)
+                .append(parallelPublishers, other.parallelPublishers)
+                .isEquals();
     }
 
     @Override
     public int hashCode() {
-        return addToHashCode(new HashCodeBuilder()).toHashCode();
+        return addToHashCode(new HashCodeBuilder()).append(parallelPublishers).toHashCode();
     }
 
     @Override
     public String toString() {
         return addToToString(new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE))
+                .append("parallelPublishers", parallelPublishers)
                 .toString();
     }
 
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+
+/**
+ * Uploads the segments of a large file after the first over sessions of their own, each storing its segment at its
+ * offset with REST and STOR, while the client stores the first segment.
+ * <p>
+ * The client opens the file before the other segments are started, so that its STOR, which truncates the file, comes
+ * before any of them. The sessions are kept for the next large file until the client disconnects.
+ */
+final class BapFtpSegmentedUpload {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final BapFtpHostConfiguration hostConfig;
+    private final BPBuildInfo buildInfo;
+    private final long threshold;
+    private final int segments;
+    private final BlockingQueue<BapFtpClient> idleSessions = new LinkedBlockingQueue<>();
+    private ExecutorService executor;
+
+    BapFtpSegmentedUpload(
+            final BapFtpHostConfiguration hostConfig,
+            final BPBuildInfo buildInfo,
+            final long threshold,
+            final int segments) {
+        this.hostConfig = hostConfig;
+        this.buildInfo = buildInfo;
+        this.threshold = threshold;
+        this.segments = segments;
+    }
+
+    boolean isSegmented(final long length) {
+        return length >= threshold && length >= segments;
+    }
+
+    long getSegmentLength(final long length) {
+        return (length + segments - 1) / segments;
+    }
+
+    /**
+     * Starts storing every segment but the first into the file at the absolute path, which the client must already have
+     * opened.
+     */
+    List<Future<?>> storeSegments(final String path, final FilePath filePath, final long length) {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(
+                    segments - 1, new NamingThreadFactory(new DaemonThreadFactory(), "Publish over FTP segment"));
+        final long segmentLength = getSegmentLength(length);
+        final List<Future<?>> stored = new ArrayList<>();
+        for (long offset = segmentLength; offset < length; offset += segmentLength) {
+            final long start = offset;
+            final long count = Math.min(segmentLength, length - offset);
+            stored.add(executor.submit(() -> {
+                storeSegment(path, filePath, start, count);
+                return null;
+            }));
+        }
+        return stored;
+    }
+
+    /**
+     * Waits for the segments, and fails with the first of them that failed.
+     */
+    void awaitSegments(final List<Future<?>> stored) throws IOException {
+        Throwable failure = null;
+        for (Future<?> segment : stored) {
+            try {
+                segment.get();
+            } catch (ExecutionException ee) {
+                if (failure == null) failure = ee.getCause();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                for (Future<?> cancel : stored) cancel.cancel(true);
+                throw new InterruptedIOException(ie.getMessage());
+            }
+        }
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure != null) throw new IOException(failure);
+    }
+
+    /**
+     * Cancels the segments and waits until none of them is still writing, so that the file is not written to after the
+     * upload has failed. A cancelled future does not wait for its task to stop, so the executor is shut down and waited
+     * for instead, and a new one is started by the next large file.
+     */
+    void cancelSegments(final List<Future<?>> stored) {
+        for (Future<?> segment : stored) segment.cancel(true);
+        if (executor == null) return;
+        executor.shutdownNow();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) executor.shutdownNow();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor = null;
+        }
+    }
+
+    private void storeSegment(final String path, final FilePath filePath, final long offset, final long count)
+            throws IOException, InterruptedException {
+        BapFtpClient session = idleSessions.poll();
+        if (session == null) session = hostConfig.createSession(buildInfo);
+        boolean stored = false;
+        try {
+            final FTPClient ftpClient = session.getFtpClient();
+            if (!ftpClient.setFileType(FTP.BINARY_FILE_TYPE))
+                throw new BapPublisherException(Messages.exception_failedToSetTransferMode(ftpClient.getReplyString()));
+            ftpClient.setRestartOffset(offset);
+            try (InputStream content = filePath.readFromOffset(offset)) {
+                final OutputStream data = ftpClient.storeFileStream(path);
+                if (data == null)
+                    throw new BapPublisherException(
+                            Messages.exception_failedToStoreSegment(offset, ftpClient.getReplyString()));
+                try (OutputStream segment = data) {
+                    copy(content, segment, count);
+                }
+            }
+            if (!ftpClient.completePendingCommand())
+                throw new BapPublisherException(
+                        Messages.exception_failedToStoreSegment(offset, ftpClient.getReplyString()));
+            stored = true;
+        } finally {
+            if (stored) {
+                idleSessions.add(session);
+            } else {
+                session.disconnectQuietly();
+            }
+        }
+    }
+
+    static void copy(final InputStream content, final OutputStream data, final long count) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1))];
+        long remaining = count;
+        while (remaining > 0) {
+            final int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) throw new EOFException();
+            data.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    void close() {
+        if (executor != null) executor.shutdownNow();
+        executor = null;
+        BapFtpClient session;
+        while ((session = idleSessions.poll()) != null) session.disconnectQuietly();
+    }
+}
@@ -33,12 +33,25 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class BapFtpTransfer extends BPTransfer implements Describable<BapFtpTransfer> {
 
     private static final long serialVersionUID = 1L;
 
     private boolean asciiMode;
+    private boolean skipUnchanged;
+    private String archiveName;
+    private boolean archiveMetadata;
+    private String temporaryPrefix;
+    private String temporarySuffix;
+    private boolean stageAndSwap;
+    private int retentionCount;
+    private int retentionDays;
+    private boolean mirror;
+    private boolean runInParallel;
+    private boolean autoTransferType;
+    private String asciiExtensions;
 
     public BapFtpTransfer(
             final String sourceFiles,
@@ -96,20 +109,167 @@ public class BapFtpTransfer extends BPTransfer implements Describable<BapFtpTran
         this.asciiMode = asciiMode;
     }
 
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchanged(final boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    public String getArchiveName() {
+        return archiveName;
+    }
+
+    @DataBoundSetter
+    public void setArchiveName(final String archiveName) {
+        this.archiveName = archiveName;
+    }
+
+    public boolean isArchiveMetadata() {
+        return archiveMetadata;
+    }
+
+    @DataBoundSetter
+    public void setArchiveMetadata(final boolean archiveMetadata) {
+        this.archiveMetadata = archiveMetadata;
+    }
+
+    public String getTemporaryPrefix() {
+        return temporaryPrefix;
+    }
+
+    @DataBoundSetter
+    public void setTemporaryPrefix(final String temporaryPrefix) {
+        this.temporaryPrefix = temporaryPrefix;
+    }
+
+    public String getTemporarySuffix() {
+        return temporarySuffix;
+    }
+
+    @DataBoundSetter
+    public void setTemporarySuffix(final String temporarySuffix) {
+        this.temporarySuffix = temporarySuffix;
+    }
+
+    public boolean isStageAndSwap() {
+        return stageAndSwap;
+    }
+
+    @DataBoundSetter
+    public void setStageAndSwap(final boolean stageAndSwap) {
+        this.stageAndSwap = stageAndSwap;
+    }
+
+    public int getRetentionCount() {
+        return retentionCount;
+    }
+
+    @DataBoundSetter
+    public void setRetentionCount(final int retentionCount) {
+        this.retentionCount = retentionCount;
+    }
+
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    @DataBoundSetter
+    public void setRetentionDays(final int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    @DataBoundSetter
+    public void setMirror(final boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    public boolean isRunInParallel() {
+        return runInParallel;
+    }
+
+    @DataBoundSetter
+    public void setRunInParallel(final boolean runInParallel) {
+        this.runInParallel = runInParallel;
+    }
+
+    public boolean isAutoTransferType() {
+        return autoTransferType;
+    }
+
+    @DataBoundSetter
+    public void setAutoTransferType(final boolean autoTransferType) {
+        this.autoTransferType = autoTransferType;
+    }
+
+    public String getAsciiExtensions() {
+        return asciiExtensions;
+    }
+
+    @DataBoundSetter
+    public void setAsciiExtensions(final String asciiExtensions) {
+        this.asciiExtensions = asciiExtensions;
+    }
+
     public BapFtpTransferDescriptor getDescriptor() {
         return Jenkins.getInstance().getDescriptorByType(BapFtpTransferDescriptor.class);
     }
 
     protected HashCodeBuilder addToHashCode(final HashCodeBuilder builder) {
-        return super.addToHashCode(builder).append(asciiMode);
+        return super.addToHashCode(builder)
+                .append(asciiMode)
+                .append(skipUnchanged)
+                .append(archiveName)
+                .append(archiveMetadata)
+                .append(temporaryPrefix)
+                .append(temporarySuffix)
+                .append(stageAndSwap)
+                .append(retentionCount)
+                .append(retentionDays)
+                .append(mirror)
+                .append(runInParallel)
+                .append(autoTransferType)
+                .append(asciiExtensions);
     }
 
     protected EqualsBuilder addToEquals(final EqualsBuilder builder, final BapFtpTransfer that) {
-        return super.addToEquals(builder, that).append(asciiMode, that.asciiMode);
+        return super.addToEquals(builder, that)
+                .append(asciiMode, that.asciiMode)
+                .append(skipUnchanged, that.skipUnchanged)
+                .append(archiveName, that.archiveName)
+                .append(archiveMetadata, that.archiveMetadata)
+                .append(temporaryPrefix, that.temporaryPrefix)
+                .append(temporarySuffix, that.temporarySuffix)
+                .append(stageAndSwap, that.stageAndSwap)
+                .append(retentionCount, that.retentionCount)
+                .append(retentionDays, that.retentionDays)
+                .append(mirror, that.mirror)
+                .append(runInParallel, that.runInParallel)
+                .append(autoTransferType, that.autoTransferType)
+                .append(asciiExtensions, that.asciiExtensions);
     }
 
     protected ToStringBuilder addToToString(final ToStringBuilder builder) {
-        return super.addToToString(builder).append("asciiMode", asciiMode);
+        return super.addToToString(builder)
+                .append("asciiMode", asciiMode)
+                .append("skipUnchanged", skipUnchanged)
+                .append("archiveName", archiveName)
+                .append("archiveMetadata", archiveMetadata)
+                .append("temporaryPrefix", temporaryPrefix)
+                .append("temporarySuffix", temporarySuffix)
+                .append("stageAndSwap", stageAndSwap)
+                .append("retentionCount", retentionCount)
+                .append("retentionDays", retentionDays)
+                .append("mirror", mirror)
+                .append("runInParallel", runInParallel)
+                .append("autoTransferType", autoTransferType)
+                .append("asciiExtensions", asciiExtensions);
     }
 
     public boolean equals(final Object that) {
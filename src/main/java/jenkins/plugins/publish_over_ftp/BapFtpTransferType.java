@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.Util;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+
+/**
+ * Chooses ASCII or binary for each file of a transfer set that has the transfer type chosen per file.
+ * <p>
+ * If the transfer set lists ASCII extensions, a file is sent as ASCII when its extension is in the list. Otherwise the
+ * first block of the file is read ahead, and the file is sent as ASCII unless that block has a NUL byte in it, which is
+ * how git tells binary files from text.
+ */
+final class BapFtpTransferType {
+
+    static final int SNIFF_SIZE = 8000;
+
+    private BapFtpTransferType() {}
+
+    static boolean hasAsciiExtensions(final BapFtpTransfer transfer) {
+        return Util.fixEmptyAndTrim(transfer.getAsciiExtensions()) != null;
+    }
+
+    static boolean hasAsciiExtension(final BapFtpTransfer transfer, final String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0) return false;
+        final String extension = name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+        for (String listed : transfer.getAsciiExtensions().split("[,\\s]+")) {
+            String trimmed = listed.toLowerCase(Locale.ENGLISH);
+            if (trimmed.startsWith("*")) trimmed = trimmed.substring(1);
+            if (trimmed.startsWith(".")) trimmed = trimmed.substring(1);
+            if (!trimmed.isEmpty() && trimmed.equals(extension)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the first block of the content and pushes it back, so the content can then be stored from the start.
+     */
+    static boolean isText(final PushbackInputStream content) throws IOException {
+        final byte[] block = new byte[SNIFF_SIZE];
+        int length = 0;
+        int read;
+        while (length < block.length && (read = content.read(block, length, block.length - length)) > 0)
+            length += read;
+        content.unread(block, 0, length);
+        for (int i = 0; i < length; i++) if (block[i] == 0) return false;
+        return true;
+    }
+}
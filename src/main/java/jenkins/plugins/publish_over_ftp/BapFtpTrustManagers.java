@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.X509TrustManager;
+import org.apache.commons.net.util.SSLContextUtils;
+import org.apache.commons.net.util.TrustManagerUtils;
+
+/**
+ * Builds the trust managers used for FTP over TLS, and keeps them so that the trust store is not read and parsed again
+ * for every connection.
+ * <p>
+ * A trust manager is reused while the trust store file has the same path, size and modification time, and the host
+ * configuration has the same trusted certificate. The SSL context built on it is kept with it, so that its client
+ * session cache lets a new connection resume the TLS session of an earlier one. The cache only keeps a digest of the
+ * trust store password, which is read again from the system property when the trust store is loaded.
+ */
+final class BapFtpTrustManagers {
+
+    private static final int MAX_ENTRIES = 16;
+
+    private static final Map<Key, Trust> CACHE = new LinkedHashMap<Key, Trust>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Trust> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private BapFtpTrustManagers() {}
+
+    static X509TrustManager get(final String trustedCertificate) throws GeneralSecurityException, IOException {
+        return getTrust(trustedCertificate).trustManager;
+    }
+
+    static SSLContext getSslContext(final String trustedCertificate) throws GeneralSecurityException, IOException {
+        final Trust trust = getTrust(trustedCertificate);
+        synchronized (trust) {
+            if (trust.sslContext == null)
+                trust.sslContext = SSLContextUtils.createSSLContext("TLS", (KeyManager) null, trust.trustManager);
+            return trust.sslContext;
+        }
+    }
+
+    private static Trust getTrust(final String trustedCertificate) throws GeneralSecurityException, IOException {
+        final Key key = new Key(trustedCertificate);
+        synchronized (CACHE) {
+            final Trust cached = CACHE.get(key);
+            if (cached != null) return cached;
+        }
+        final Trust trust = new Trust(TrustManagerUtils.getDefaultTrustManager(createKeyStore(key.trustStorePath,
+                System.getProperty("javax.net.ssl.trustStorePassword"), key.trustedCertificate)));
+        synchronized (CACHE) {
+            final Trust existing = CACHE.putIfAbsent(key, trust);
+            return existing == null ? trust : existing;
+        }
+    }
+
+    static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    private static KeyStore createKeyStore(
+            final String trustStorePath, final String trustStorePassword, final String trustedCertificate)
+            throws GeneralSecurityException, IOException {
+        final KeyStore ts = KeyStore.getInstance(KeyStore.getDefaultType());
+        if (trustStorePath != null) {
+            try (FileInputStream stream = new FileInputStream(trustStorePath)) {
+                if (trustStorePassword != null) {
+                    ts.load(stream, trustStorePassword.toCharArray());
+                } else {
+                    ts.load(stream, null);
+                }
+            }
+        } else {
+            ts.load(null);
+        }
+
+        if (trustedCertificate != null) {
+            final InputStream certStream = new ByteArrayInputStream(trustedCertificate.getBytes());
+            final X509Certificate x509certificate =
+                    (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(certStream);
+            ts.setCertificateEntry(x509certificate.getSubjectDN().getName(), x509certificate);
+        }
+        return ts;
+    }
+
+    private static final class Trust {
+        private final X509TrustManager trustManager;
+        private SSLContext sslContext;
+
+        Trust(final X509TrustManager trustManager) {
+            this.trustManager = trustManager;
+        }
+    }
+
+    private static final class Key {
+        private final String trustStorePath;
+        private final byte[] trustStorePassword;
+        private final long trustStoreModified;
+        private final long trustStoreLength;
+        private final String trustedCertificate;
+
+        Key(final String trustedCertificate) {
+            this.trustStorePath = System.getProperty("javax.net.ssl.trustStore");
+            this.trustStorePassword = BapFtpDigests.sha256(System.getProperty("javax.net.ssl.trustStorePassword"));
+            final File trustStore = trustStorePath == null ? null : new File(trustStorePath);
+            this.trustStoreModified = trustStore == null ? 0 : trustStore.lastModified();
+            this.trustStoreLength = trustStore == null ? 0 : trustStore.length();
+            this.trustedCertificate = trustedCertificate;
+        }
+
+        @Override
+        public boolean equals(final Object that) {
+            if (this == that) return true;
+            if (that == null || getClass() != that.getClass()) return false;
+            final Key other = (Key) that;
+            return trustStoreModified == other.trustStoreModified
+                    && trustStoreLength == other.trustStoreLength
+                    && Objects.equals(trustStorePath, other.trustStorePath)
+                    && MessageDigest.isEqual(trustStorePassword, other.trustStorePassword)
+                    && Objects.equals(trustedCertificate, other.trustedCertificate);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(trustStorePath, Arrays.hashCode(trustStorePassword), trustStoreModified,
+                    trustStoreLength, trustedCertificate);
+        }
+    }
+}
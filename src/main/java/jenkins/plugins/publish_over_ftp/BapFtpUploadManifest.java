@@ -0,0 +1,357 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import hudson.Util;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Index of the files uploaded to one remote root on one host, kept on the node that does the publishing, so that files
+ * that have not changed since they were last uploaded can be skipped without listing the remote directories.
+ * <p>
+ * The index is an open addressing hash table of fixed size entries in a memory mapped file, so a manifest with
+ * millions of entries is not read into the heap. Each entry holds a hash of the absolute remote path, the size and MD5
+ * digest of the content that was uploaded, and the time of the upload.
+ * <p>
+ * An entry is removed before its file is stored and added back once the store has succeeded, so a publish that fails
+ * part way never leaves an entry for a file that may be incomplete on the server. The file is marked dirty while it is
+ * open, and a manifest that was not closed cleanly, or that was {@link #invalidate(File) invalidated} while another
+ * publish held it, is discarded the next time it is opened.
+ */
+final class BapFtpUploadManifest implements Closeable {
+
+    static final String DIRECTORY_PROPERTY = BapFtpUploadManifest.class.getName() + ".directory";
+
+    private static final int MAGIC = 0x42465055;
+    private static final int VERSION = 1;
+    private static final int CLEAN = 0;
+    private static final int DIRTY = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int STATE_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int USED_OFFSET = 16;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int KEY_SIZE = 16;
+    private static final int SIZE_OFFSET = KEY_SIZE;
+    private static final int DIGEST_OFFSET = SIZE_OFFSET + 8;
+    private static final int DIGEST_SIZE = 16;
+    private static final int UPLOADED_OFFSET = DIGEST_OFFSET + DIGEST_SIZE;
+    private static final int ENTRY_SIZE = UPLOADED_OFFSET + 8;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int MAX_CAPACITY = 1 << 25;
+    private static final long REMOVED = -1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int used;
+
+    private BapFtpUploadManifest(
+            final File file, final FileChannel channel, final FileChannel lockChannel, final FileLock lock) {
+        this.file = file;
+        this.channel = channel;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    static File getDirectory() {
+        final String directory = SystemProperties.getString(DIRECTORY_PROPERTY);
+        if (directory != null) return new File(directory);
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        final File root = jenkins == null ? new File(System.getProperty("java.io.tmpdir")) : jenkins.getRootDir();
+        return new File(root, "publish-over-ftp" + File.separator + "manifests");
+    }
+
+    static File getFile(final String hostname, final int port, final String username, final String remoteRoot) {
+        final byte[] id = sha256(hostname + '\n' + port + '\n' + username + '\n' + remoteRoot);
+        return new File(getDirectory(), Util.toHexString(id, 0, KEY_SIZE) + ".idx");
+    }
+
+    /**
+     * @return the open manifest, or null if another publish has it open
+     */
+    static BapFtpUploadManifest open(final File file) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        final FileChannel lockChannel = FileChannel.open(
+                lockFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileChannel channel = null;
+        FileLock lock = null;
+        try {
+            lock = tryLock(lockChannel);
+            if (lock == null) {
+                lockChannel.close();
+                return null;
+            }
+            channel = FileChannel.open(
+                    file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final BapFtpUploadManifest manifest = new BapFtpUploadManifest(file, channel, lockChannel, lock);
+            final File invalid = invalidFile(file);
+            manifest.load(invalid.exists());
+            Files.deleteIfExists(invalid.toPath());
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) channel.close();
+            if (lock != null) lock.release();
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Make sure that the manifest is not used again, whether or not another publish has it open.
+     */
+    static void invalidate(final File file) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(invalidFile(file).toPath(), new byte[0]);
+    }
+
+    synchronized boolean isUnchanged(final String path, final long size, final byte[] digest) {
+        final int offset = indexOf(key(path));
+        if (offset < 0 || buffer.getLong(offset + SIZE_OFFSET) != size) return false;
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            if (buffer.get(offset + DIGEST_OFFSET + i) != digest[i]) return false;
+        }
+        return true;
+    }
+
+    synchronized void put(final String path, final long size, final byte[] digest, final long uploaded)
+            throws IOException {
+        if (buffer == null) return;
+        final byte[] key = key(path);
+        int offset = indexOf(key);
+        if (offset < 0) {
+            if ((used + 1) * 2L > capacity && !grow()) return;
+            offset = emptySlot(key);
+            for (int i = 0; i < KEY_SIZE; i++) buffer.put(offset + i, key[i]);
+            buffer.putInt(USED_OFFSET, ++used);
+        }
+        buffer.putLong(offset + SIZE_OFFSET, size);
+        for (int i = 0; i < DIGEST_SIZE; i++) buffer.put(offset + DIGEST_OFFSET + i, digest[i]);
+        buffer.putLong(offset + UPLOADED_OFFSET, uploaded);
+    }
+
+    synchronized void remove(final String path) {
+        if (buffer == null) return;
+        final int offset = indexOf(key(path));
+        if (offset >= 0) buffer.putLong(offset + SIZE_OFFSET, REMOVED);
+    }
+
+    synchronized void clear() {
+        final int end = HEADER_SIZE + capacity * ENTRY_SIZE;
+        for (int i = HEADER_SIZE; i < end; i += 8) buffer.putLong(i, 0);
+        used = 0;
+        buffer.putInt(USED_OFFSET, used);
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            if (buffer != null) {
+                buffer.putInt(STATE_OFFSET, CLEAN);
+                buffer.force();
+                buffer = null;
+            }
+        } finally {
+            try {
+                channel.close();
+            } finally {
+                if (lock.isValid()) lock.release();
+                lockChannel.close();
+            }
+        }
+    }
+
+    private void load(final boolean discard) throws IOException {
+        final long length = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!discard && length >= HEADER_SIZE) channel.read(header, 0);
+        final int storedCapacity = header.getInt(CAPACITY_OFFSET);
+        final boolean valid = header.getInt(MAGIC_OFFSET) == MAGIC
+                && header.getInt(VERSION_OFFSET) == VERSION
+                && header.getInt(STATE_OFFSET) == CLEAN
+                && storedCapacity >= INITIAL_CAPACITY
+                && storedCapacity <= MAX_CAPACITY
+                && Integer.bitCount(storedCapacity) == 1
+                && length >= tableLength(storedCapacity);
+        if (valid) {
+            capacity = storedCapacity;
+            map();
+            used = buffer.getInt(USED_OFFSET);
+        } else {
+            capacity = INITIAL_CAPACITY;
+            while (capacity < MAX_CAPACITY && tableLength(capacity * 2) <= length) capacity *= 2;
+            map();
+            clear();
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+        }
+        buffer.putInt(STATE_OFFSET, DIRTY);
+        buffer.force();
+    }
+
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, tableLength(capacity));
+    }
+
+    /**
+     * Rehash into a table twice the size. The new table is built in a temporary file with positional reads and writes,
+     * and then copied over the mapped file, so the entries are never all held in the heap.
+     */
+    private boolean grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) return false;
+        final int newCapacity = capacity * 2;
+        final File temp = new File(file.getPath() + ".tmp");
+        int live = 0;
+        try (FileChannel table = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            table.write(ByteBuffer.allocate(1), (long) newCapacity * ENTRY_SIZE - 1);
+            final byte[] entry = new byte[ENTRY_SIZE];
+            final ByteBuffer probe = ByteBuffer.allocate(KEY_SIZE);
+            for (int slot = 0; slot < capacity; slot++) {
+                final int offset = offset(slot);
+                if (isEmpty(offset) || buffer.getLong(offset + SIZE_OFFSET) == REMOVED) continue;
+                for (int i = 0; i < ENTRY_SIZE; i++) entry[i] = buffer.get(offset + i);
+                int newSlot = home(entry, newCapacity);
+                while (true) {
+                    probe.clear();
+                    table.read(probe, (long) newSlot * ENTRY_SIZE);
+                    if (probe.getLong(0) == 0 && probe.getLong(8) == 0) break;
+                    newSlot = (newSlot + 1) & (newCapacity - 1);
+                }
+                table.write(ByteBuffer.wrap(entry), (long) newSlot * ENTRY_SIZE);
+                live++;
+            }
+            capacity = newCapacity;
+            map();
+            final ByteBuffer target = buffer.duplicate();
+            target.position(HEADER_SIZE);
+            long position = 0;
+            while (target.hasRemaining()) {
+                final int read = table.read(target, position);
+                if (read < 0) break;
+                position += read;
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+        used = live;
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(USED_OFFSET, used);
+        return true;
+    }
+
+    private int indexOf(final byte[] key) {
+        for (int slot = home(key, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+            final int offset = offset(slot);
+            if (isEmpty(offset)) return -1;
+            if (keyEquals(offset, key)) return offset;
+        }
+    }
+
+    private int emptySlot(final byte[] key) {
+        int slot = home(key, capacity);
+        while (!isEmpty(offset(slot))) slot = (slot + 1) & (capacity - 1);
+        return offset(slot);
+    }
+
+    private boolean keyEquals(final int offset, final byte[] key) {
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (buffer.get(offset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean isEmpty(final int offset) {
+        return buffer.getLong(offset) == 0 && buffer.getLong(offset + 8) == 0;
+    }
+
+    private static int offset(final int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    private static int home(final byte[] key, final int capacity) {
+        return (int) (ByteBuffer.wrap(key, 0, 8).getLong() & (capacity - 1));
+    }
+
+    private static long tableLength(final int capacity) {
+        return HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+    }
+
+    private static byte[] key(final String path) {
+        final byte[] key = Arrays.copyOf(sha256(path), KEY_SIZE);
+        if (Arrays.equals(key, new byte[KEY_SIZE])) key[0] = 1;
+        return key;
+    }
+
+    private static byte[] sha256(final String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    private static FileLock tryLock(final FileChannel lockChannel) throws IOException {
+        try {
+            return lockChannel.tryLock();
+        } catch (OverlappingFileLockException ofle) {
+            return null;
+        }
+    }
+
+    private static File lockFile(final File file) {
+        return new File(file.getPath() + ".lock");
+    }
+
+    private static File invalidFile(final File file) {
+        return new File(file.getPath() + ".invalid");
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ftp;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.net.ftp.FTPSClient;
+
+/**
+ * FTPS client that resumes the TLS session of the control connection on the data connections.
+ * <p>
+ * Servers such as vsftpd with require_ssl_reuse refuse data connections that do not resume the control session, and
+ * every data connection that does not resume pays for a full handshake. The JSSE client only offers a cached session
+ * to the same host and port, so the control session is added to the session cache under the address of each data
+ * connection before its handshake. That cache is not public API, and on Java 17 and later it can only be reached when
+ * java.base/sun.security.ssl is opened to the plugin; if it cannot be reached, data connections fall back to full
+ * handshakes, which is logged once as a warning.
+ * <p>
+ * Whether a data connection did resume cannot be told reliably from the client, as TLS 1.3 hands out a new session id
+ * on resumption, so only the data connections that were offered the control session are counted.
+ */
+class BapFtpsClient extends FTPSClient {
+
+    private static final Log LOG = LogFactory.getLog(BapFtpsClient.class);
+    private static final AtomicBoolean CACHE_UNAVAILABLE_LOGGED = new AtomicBoolean();
+
+    private final boolean reuseSession;
+    private int dataConnections;
+    private int offeredDataConnections;
+
+    BapFtpsClient(final boolean isImplicit, final SSLContext context, final boolean reuseSession) {
+        super(isImplicit, context);
+        this.reuseSession = reuseSession;
+    }
+
+    int getDataConnections() {
+        return dataConnections;
+    }
+
+    int getOfferedDataConnections() {
+        return offeredDataConnections;
+    }
+
+    void resetCounters() {
+        dataConnections = 0;
+        offeredDataConnections = 0;
+    }
+
+    @Override
+    protected void _prepareDataSocket_(final Socket socket) throws IOException {
+        if (!reuseSession || !(socket instanceof SSLSocket) || !(_socket_ instanceof SSLSocket)) return;
+        dataConnections++;
+        final SSLSession session = ((SSLSocket) _socket_).getSession();
+        if (!session.isValid()) return;
+        final SSLSessionContext context = session.getSessionContext();
+        try {
+            final Field cacheField = context.getClass().getDeclaredField("sessionHostPortCache");
+            cacheField.setAccessible(true);
+            final Object cache = cacheField.get(context);
+            final Method put = cache.getClass().getDeclaredMethod("put", Object.class, Object.class);
+            put.setAccessible(true);
+            put.invoke(cache, cacheKey(socket.getInetAddress().getHostAddress(), socket.getPort()), session);
+            offeredDataConnections++;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            if (CACHE_UNAVAILABLE_LOGGED.compareAndSet(false, true)) {
+                LOG.warn(Messages.log_tlsSessionReuseUnavailable(), e);
+            } else {
+                LOG.debug(Messages.log_tlsSessionReuseUnavailable(), e);
+            }
+        }
+    }
+
+    /**
+     * The data connections are opened to the address from the PASV or EPSV reply, which is the peer host the JSSE
+     * client looks the session up by. The host name is not asked for, as that can take a reverse lookup per data
+     * connection.
+     */
+    static String cacheKey(final String address, final int port) {
+        return (address + ":" + port).toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -55,6 +55,18 @@ public class BapFtpHostConfigurationDescriptor extends Descriptor<BapFtpHostConf
         return BapFtpHostConfiguration.DEFAULT_TIMEOUT;
     }
 
+    public int getDefaultFanOutBufferSize() {
+        return BapFtpHostConfiguration.DEFAULT_FAN_OUT_BUFFER_SIZE;
+    }
+
+    public int getDefaultSegmentThreshold() {
+        return BapFtpHostConfiguration.DEFAULT_SEGMENT_THRESHOLD;
+    }
+
+    public int getDefaultModeZCompressionLevel() {
+        return BapFtpHostConfiguration.DEFAULT_MODE_Z_COMPRESSION_LEVEL;
+    }
+
     public FormValidation doCheckName(@QueryParameter final String value) {
         return BPValidators.validateName(value);
     }
@@ -71,6 +83,42 @@ public class BapFtpHostConfigurationDescriptor extends Descriptor<BapFtpHostConf
         return FormValidation.validateNonNegativeInteger(value);
     }
 
+    public FormValidation doCheckParallelConnections(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckBufferSize(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckSendBufferSize(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckReceiveBufferSize(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckFanOutBufferSize(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckUploadSegments(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckSegmentThreshold(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckModeZCompressionLevel(@QueryParameter final String value) {
+        final FormValidation integer = FormValidation.validateNonNegativeInteger(value);
+        if (integer.kind != FormValidation.Kind.OK) return integer;
+        return BapFtpHostConfiguration.isValidCompressionLevel(Integer.parseInt(value.trim()))
+                ? FormValidation.ok()
+                : FormValidation.error(Messages.descriptor_validation_compressionLevel());
+    }
+
     @RequirePOST
     public FormValidation doTestConnection(
             @QueryParameter final String name,
@@ -86,7 +134,11 @@ public class BapFtpHostConfigurationDescriptor extends Descriptor<BapFtpHostConf
             @QueryParameter final boolean disableRemoteVerification,
             @QueryParameter final boolean useFtpOverTls,
             @QueryParameter final boolean useImplicitTls,
-            @QueryParameter final String trustedCertificate) {
+            @QueryParameter final String trustedCertificate,
+            @QueryParameter final int bufferSize,
+            @QueryParameter final int sendBufferSize,
+            @QueryParameter final int receiveBufferSize,
+            @QueryParameter final boolean tcpNoDelay) {
         final BapFtpPublisherPlugin.Descriptor pluginDescriptor =
                 Jenkins.getInstance().getDescriptorByType(BapFtpPublisherPlugin.Descriptor.class);
         return pluginDescriptor.doTestConnection(
@@ -103,7 +155,11 @@ public class BapFtpHostConfigurationDescriptor extends Descriptor<BapFtpHostConf
                 disableRemoteVerification,
                 useFtpOverTls,
                 useImplicitTls,
-                trustedCertificate);
+                trustedCertificate,
+                bufferSize,
+                sendBufferSize,
+                receiveBufferSize,
+                tcpNoDelay);
     }
 
     public jenkins.plugins.publish_over.view_defaults.HostConfiguration.Messages getCommonFieldNames() {
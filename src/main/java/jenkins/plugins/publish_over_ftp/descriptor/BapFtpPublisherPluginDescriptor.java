@@ -37,12 +37,14 @@ import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPInstanceConfig;
 import jenkins.plugins.publish_over.BPPlugin;
 import jenkins.plugins.publish_over.BPPluginDescriptor;
+import jenkins.plugins.publish_over_ftp.BapFtpClient;
 import jenkins.plugins.publish_over_ftp.BapFtpHostConfiguration;
 import jenkins.plugins.publish_over_ftp.BapFtpPublisherPlugin;
 import jenkins.plugins.publish_over_ftp.Messages;
 import jenkins.plugins.publish_over_ftp.options.FtpDefaults;
 import jenkins.plugins.publish_over_ftp.options.FtpPluginDefaults;
 import net.sf.json.JSONObject;
+import org.apache.commons.net.ftp.FTPClient;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
@@ -92,6 +94,7 @@ public class BapFtpPublisherPluginDescriptor extends BuildStepDescriptor<Publish
 
     public boolean configure(final StaplerRequest request, final JSONObject formData) {
         hostConfigurations.replaceBy(request.bindJSONToList(BapFtpHostConfiguration.class, formData.get("instance")));
+        BapFtpHostConfiguration.clearCachedTrustManagers();
         if (isEnableOverrideDefaults())
             defaults = request.bindJSON(FtpDefaults.class, formData.getJSONObject("defaults"));
         save();
@@ -145,7 +148,11 @@ public class BapFtpPublisherPluginDescriptor extends BuildStepDescriptor<Publish
             final boolean disableRemoteVerification,
             final boolean useFtpOverTls,
             final boolean useImplicitTls,
-            final String trustedCertificate) {
+            final String trustedCertificate,
+            final int bufferSize,
+            final int sendBufferSize,
+            final int receiveBufferSize,
+            final boolean tcpNoDelay) {
         Jenkins.get().checkPermission(Jenkins.ADMINISTER);
         final BapFtpHostConfiguration hostConfig = new BapFtpHostConfiguration(
                 name,
@@ -162,14 +169,25 @@ public class BapFtpPublisherPluginDescriptor extends BuildStepDescriptor<Publish
         hostConfig.setUseFtpOverTls(useFtpOverTls);
         hostConfig.setUseImplicitTls(useImplicitTls);
         hostConfig.setTrustedCertificate(trustedCertificate);
+        hostConfig.setBufferSize(bufferSize);
+        hostConfig.setSendBufferSize(sendBufferSize);
+        hostConfig.setReceiveBufferSize(receiveBufferSize);
+        hostConfig.setTcpNoDelay(tcpNoDelay);
         return validateConnection(hostConfig, createDummyBuildInfo());
     }
 
     public static FormValidation validateConnection(
             final BapFtpHostConfiguration hostConfig, final BPBuildInfo buildInfo) {
         try {
-            hostConfig.createClient(buildInfo).disconnect();
-            return FormValidation.ok(Messages.descriptor_testConnection_ok());
+            final BapFtpClient client = hostConfig.createClient(buildInfo);
+            final FTPClient ftpClient = client.getFtpClient();
+            final String socketSettings = Messages.descriptor_testConnection_socketSettings(
+                    ftpClient.getBufferSize(),
+                    ftpClient.getSendBufferSize(),
+                    ftpClient.getReceiveBufferSize(),
+                    ftpClient.getTcpNoDelay());
+            client.disconnect();
+            return FormValidation.ok(Messages.descriptor_testConnection_ok() + " " + socketSettings);
         } catch (Exception e) {
             return FormValidation.errorWithMarkup("<p>"
                     + Messages.descriptor_testConnection_error() + "</p><p><pre>"
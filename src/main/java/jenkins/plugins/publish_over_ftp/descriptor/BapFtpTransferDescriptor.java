@@ -1,10 +1,12 @@
 package jenkins.plugins.publish_over_ftp.descriptor;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Descriptor;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import jenkins.plugins.publish_over.BPValidators;
+import jenkins.plugins.publish_over_ftp.BapFtpArchive;
 import jenkins.plugins.publish_over_ftp.BapFtpPublisherPlugin;
 import jenkins.plugins.publish_over_ftp.BapFtpTransfer;
 import jenkins.plugins.publish_over_ftp.Messages;
@@ -34,6 +36,12 @@ public class BapFtpTransferDescriptor extends Descriptor<BapFtpTransfer> {
         return BPValidators.validateRegularExpression(value);
     }
 
+    public FormValidation doCheckArchiveName(@QueryParameter final String value) {
+        final String name = Util.fixEmptyAndTrim(value);
+        if (name == null || BapFtpArchive.isSupported(name)) return FormValidation.ok();
+        return FormValidation.error(Messages.exception_archiveFormat(name));
+    }
+
     public jenkins.plugins.publish_over.view_defaults.BPTransfer.Messages getCommonFieldNames() {
         return new jenkins.plugins.publish_over.view_defaults.BPTransfer.Messages();
     }
@@ -29,6 +29,7 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class FtpOverrideTransferDefaults implements FtpTransferOptions, Describable<FtpOverrideTransferDefaults> {
 
@@ -43,6 +44,18 @@ public class FtpOverrideTransferDefaults implements FtpTransferOptions, Describa
     private final boolean noDefaultExcludes;
     private final boolean makeEmptyDirs;
     private final String patternSeparator;
+    private boolean skipUnchanged;
+    private String archiveName;
+    private boolean archiveMetadata;
+    private String temporaryPrefix;
+    private String temporarySuffix;
+    private boolean stageAndSwap;
+    private int retentionCount;
+    private int retentionDays;
+    private boolean mirror;
+    private boolean runInParallel;
+    private boolean autoTransferType;
+    private String asciiExtensions;
 
     @DataBoundConstructor
     public FtpOverrideTransferDefaults(
@@ -114,6 +127,114 @@ public class FtpOverrideTransferDefaults implements FtpTransferOptions, Describa
         return patternSeparator;
     }
 
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchanged(final boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    public String getArchiveName() {
+        return archiveName;
+    }
+
+    @DataBoundSetter
+    public void setArchiveName(final String archiveName) {
+        this.archiveName = archiveName;
+    }
+
+    public boolean isArchiveMetadata() {
+        return archiveMetadata;
+    }
+
+    @DataBoundSetter
+    public void setArchiveMetadata(final boolean archiveMetadata) {
+        this.archiveMetadata = archiveMetadata;
+    }
+
+    public String getTemporaryPrefix() {
+        return temporaryPrefix;
+    }
+
+    @DataBoundSetter
+    public void setTemporaryPrefix(final String temporaryPrefix) {
+        this.temporaryPrefix = temporaryPrefix;
+    }
+
+    public String getTemporarySuffix() {
+        return temporarySuffix;
+    }
+
+    @DataBoundSetter
+    public void setTemporarySuffix(final String temporarySuffix) {
+        this.temporarySuffix = temporarySuffix;
+    }
+
+    public boolean isStageAndSwap() {
+        return stageAndSwap;
+    }
+
+    @DataBoundSetter
+    public void setStageAndSwap(final boolean stageAndSwap) {
+        this.stageAndSwap = stageAndSwap;
+    }
+
+    public int getRetentionCount() {
+        return retentionCount;
+    }
+
+    @DataBoundSetter
+    public void setRetentionCount(final int retentionCount) {
+        this.retentionCount = retentionCount;
+    }
+
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    @DataBoundSetter
+    public void setRetentionDays(final int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    @DataBoundSetter
+    public void setMirror(final boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    public boolean isRunInParallel() {
+        return runInParallel;
+    }
+
+    @DataBoundSetter
+    public void setRunInParallel(final boolean runInParallel) {
+        this.runInParallel = runInParallel;
+    }
+
+    public boolean isAutoTransferType() {
+        return autoTransferType;
+    }
+
+    @DataBoundSetter
+    public void setAutoTransferType(final boolean autoTransferType) {
+        this.autoTransferType = autoTransferType;
+    }
+
+    public String getAsciiExtensions() {
+        return asciiExtensions;
+    }
+
+    @DataBoundSetter
+    public void setAsciiExtensions(final String asciiExtensions) {
+        this.asciiExtensions = asciiExtensions;
+    }
+
     public FtpOverrideTransferDefaultsDescriptor getDescriptor() {
         return Jenkins.getInstance().getDescriptorByType(FtpOverrideTransferDefaultsDescriptor.class);
     }
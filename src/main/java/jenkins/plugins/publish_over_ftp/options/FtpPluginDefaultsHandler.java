@@ -30,13 +30,85 @@ import java.lang.reflect.Method;
 public final class FtpPluginDefaultsHandler implements InvocationHandler {
 
     private static final String GET_ASCII_MODE = "isAsciiMode";
+    private static final String GET_SKIP_UNCHANGED = "isSkipUnchanged";
+    private static final String GET_ARCHIVE_NAME = "getArchiveName";
+    private static final String GET_ARCHIVE_METADATA = "isArchiveMetadata";
+    private static final String GET_TEMPORARY_PREFIX = "getTemporaryPrefix";
+    private static final String GET_TEMPORARY_SUFFIX = "getTemporarySuffix";
+    private static final String GET_STAGE_AND_SWAP = "isStageAndSwap";
+    private static final String GET_RETENTION_COUNT = "getRetentionCount";
+    private static final String GET_RETENTION_DAYS = "getRetentionDays";
+    private static final String GET_MIRROR = "isMirror";
+    private static final String GET_RUN_IN_PARALLEL = "isRunInParallel";
+    private static final String GET_AUTO_TRANSFER_TYPE = "isAutoTransferType";
+    private static final String GET_ASCII_EXTENSIONS = "getAsciiExtensions";
 
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
         if (method.getName().equals(GET_ASCII_MODE)) return isAsciiMode();
+        if (method.getName().equals(GET_SKIP_UNCHANGED)) return isSkipUnchanged();
+        if (method.getName().equals(GET_ARCHIVE_NAME)) return getArchiveName();
+        if (method.getName().equals(GET_ARCHIVE_METADATA)) return isArchiveMetadata();
+        if (method.getName().equals(GET_TEMPORARY_PREFIX)) return getTemporaryPrefix();
+        if (method.getName().equals(GET_TEMPORARY_SUFFIX)) return getTemporarySuffix();
+        if (method.getName().equals(GET_STAGE_AND_SWAP)) return isStageAndSwap();
+        if (method.getName().equals(GET_RETENTION_COUNT)) return getRetentionCount();
+        if (method.getName().equals(GET_RETENTION_DAYS)) return getRetentionDays();
+        if (method.getName().equals(GET_MIRROR)) return isMirror();
+        if (method.getName().equals(GET_RUN_IN_PARALLEL)) return isRunInParallel();
+        if (method.getName().equals(GET_AUTO_TRANSFER_TYPE)) return isAutoTransferType();
+        if (method.getName().equals(GET_ASCII_EXTENSIONS)) return getAsciiExtensions();
         return method.invoke(FtpPluginDefaults.GLOBAL_DEFAULTS, args);
     }
 
     public boolean isAsciiMode() {
         return false;
     }
+
+    public boolean isSkipUnchanged() {
+        return false;
+    }
+
+    public String getArchiveName() {
+        return null;
+    }
+
+    public boolean isArchiveMetadata() {
+        return false;
+    }
+
+    public String getTemporaryPrefix() {
+        return null;
+    }
+
+    public String getTemporarySuffix() {
+        return null;
+    }
+
+    public boolean isStageAndSwap() {
+        return false;
+    }
+
+    public int getRetentionCount() {
+        return 0;
+    }
+
+    public int getRetentionDays() {
+        return 0;
+    }
+
+    public boolean isMirror() {
+        return false;
+    }
+
+    public boolean isRunInParallel() {
+        return false;
+    }
+
+    public boolean isAutoTransferType() {
+        return false;
+    }
+
+    public String getAsciiExtensions() {
+        return null;
+    }
 }
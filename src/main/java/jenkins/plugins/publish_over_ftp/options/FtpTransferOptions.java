@@ -29,4 +29,28 @@ import jenkins.plugins.publish_over.options.TransferOptions;
 public interface FtpTransferOptions extends TransferOptions {
 
     boolean isAsciiMode();
+
+    boolean isSkipUnchanged();
+
+    String getArchiveName();
+
+    boolean isArchiveMetadata();
+
+    String getTemporaryPrefix();
+
+    String getTemporarySuffix();
+
+    boolean isStageAndSwap();
+
+    int getRetentionCount();
+
+    int getRetentionDays();
+
+    boolean isMirror();
+
+    boolean isRunInParallel();
+
+    boolean isAutoTransferType();
+
+    String getAsciiExtensions();
 }
@@ -24,35 +24,79 @@
 
 package jenkins.plugins.publish_over_ftp;
 
+import static org.easymock.EasyMock.and;
+import static org.easymock.EasyMock.endsWith;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.same;
+import static org.easymock.EasyMock.startsWith;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipInputStream;
+import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BapPublisherException;
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPListParseEngine;
+import org.apache.commons.net.ftp.FTPReply;
 import org.easymock.classextension.EasyMock;
 import org.easymock.classextension.IMocksControl;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentMatchers;
 
 @SuppressWarnings({"PMD.SignatureDeclareThrowsException", "PMD.TooManyMethods"})
 public class BapFtpClientTest {
@@ -75,6 +119,9 @@ public class BapFtpClientTest {
         BFTP_CLIENT_LOGGER.setLevel(originalLogLevel);
     }
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     private final transient IMocksControl mockControl = EasyMock.createStrictControl();
     private final transient FTPClient mockFTPClient = mockControl.createMock(FTPClient.class);
     private final transient BapFtpClient bapFtpClient = new BapFtpClient(mockFTPClient, null);
@@ -231,7 +278,8 @@ public class BapFtpClientTest {
 
     @Test
     public void testBeginTransfersAscii() throws Exception {
-        expect(mockFTPClient.setFileType(FTP.ASCII_FILE_TYPE)).andReturn(true);
+        expect(mockFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).andReturn(true);
+        expect(mockFTPClient.sendCommand("TYPE", "A")).andReturn(FTPReply.COMMAND_OK);
         mockControl.replay();
         bapFtpClient.beginTransfers(new BapFtpTransfer("*", "", "", true, false, false));
         mockControl.verify();
@@ -353,6 +401,515 @@ public class BapFtpClientTest {
         mockControl.verify();
     }
 
+    @Test
+    public void testChangeDirectoryOnlySendsCwdWhenNeeded() throws Exception {
+        final TransferFileArgs args = createTestArgs();
+        final String created = REMOTE_ROOT + "/new";
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(created)).andReturn(false);
+        expect(mockFTPClient.makeDirectory(created)).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(created)).andReturn(true);
+        expect(mockFTPClient.storeFile(eq(args.filePath.getName()), same(args.inputStream)))
+                .andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.storeFile(eq(args.filePath.getName()), same(args.inputStream)))
+                .andReturn(true);
+        mockControl.replay();
+        assertTrue(bapFtpClient.changeToInitialDirectory());
+        assertFalse(bapFtpClient.changeDirectory("new"));
+        assertTrue(bapFtpClient.makeDirectory("new"));
+        assertTrue(bapFtpClient.changeDirectory("new"));
+        bapFtpClient.transferFile(args.bapFtpTransfer, args.filePath, args.inputStream);
+        assertTrue(bapFtpClient.changeToInitialDirectory());
+        assertTrue(bapFtpClient.changeDirectory("new"));
+        assertTrue(bapFtpClient.changeToInitialDirectory());
+        bapFtpClient.transferFile(args.bapFtpTransfer, args.filePath, args.inputStream);
+        mockControl.verify();
+    }
+
+    @Test
+    public void testTransferFileStoresToTemporaryNameAndRenames() throws Exception {
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        transfer.setTemporaryPrefix(".");
+        transfer.setTemporarySuffix(".part");
+        final FilePath one = new FilePath(new File("one.txt"));
+        final FilePath two = new FilePath(new File("two.txt"));
+        final InputStream content = mockControl.createMock(InputStream.class);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.storeFile(eq(".one.txt.part"), same(content))).andReturn(true);
+        expect(mockFTPClient.rename(".one.txt.part", "one.txt")).andReturn(true);
+        expect(mockFTPClient.storeFile(eq(".two.txt.part"), same(content))).andReturn(true);
+        expect(mockFTPClient.rename(".two.txt.part", "two.txt")).andReturn(false);
+        expect(mockFTPClient.deleteFile("two.txt")).andReturn(true);
+        expect(mockFTPClient.rename(".two.txt.part", "two.txt")).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
+        bapFtpClient.transferFile(transfer, one, content);
+        bapFtpClient.transferFile(transfer, two, content);
+        mockControl.verify();
+    }
+
+    @Test
+    public void testStageAndSwapUploadsToStagingDirectoryAndSwapsItIntoPlace() throws Exception {
+        final String live = REMOTE_ROOT + "/site";
+        final String staging = live + ".staging";
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "site", "", false, false, false);
+        transfer.setStageAndSwap(true);
+        final InputStream content = mockControl.createMock(InputStream.class);
+        final FTPFile old = new FTPFile();
+        old.setName("old.html");
+        old.setType(FTPFile.FILE_TYPE);
+        expect(mockFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).andReturn(true);
+        expect(mockFTPClient.printWorkingDirectory()).andReturn(REMOTE_ROOT);
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir(staging)).andReturn(new FTPFile[0]);
+        expect(mockFTPClient.removeDirectory(staging)).andReturn(false);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(staging)).andReturn(false);
+        expect(mockFTPClient.makeDirectory(staging)).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(staging)).andReturn(true);
+        expect(mockFTPClient.storeFile(eq("index.html"), same(content))).andReturn(true);
+        expect(mockFTPClient.rename(eq(live), startsWith(live + ".previous-"))).andReturn(true);
+        expect(mockFTPClient.rename(staging, live)).andReturn(true);
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir(startsWith(live + ".previous-"))).andReturn(new FTPFile[] {old});
+        expect(mockFTPClient.deleteFile(and(startsWith(live + ".previous-"), endsWith("/old.html"))))
+                .andReturn(true);
+        expect(mockFTPClient.removeDirectory(startsWith(live + ".previous-"))).andReturn(true);
+        expect(mockFTPClient.isConnected()).andReturn(false);
+        mockControl.replay();
+        bapFtpClient.beginTransfers(transfer);
+        bapFtpClient.changeToInitialDirectory();
+        assertFalse(bapFtpClient.changeDirectory("site"));
+        assertTrue(bapFtpClient.makeDirectory("site"));
+        assertTrue(bapFtpClient.changeDirectory("site"));
+        bapFtpClient.transferFile(transfer, new FilePath(new File("index.html")), content);
+        bapFtpClient.endTransfers(transfer);
+        bapFtpClient.disconnect();
+        mockControl.verify();
+    }
+
+    @Test
+    public void testStagedPublishInvalidatesTheUploadManifestOfTheLiveDirectory() throws Exception {
+        final File local = createLocalFile("index.html", "one");
+        final File manifestFile = new File(tmp.getRoot(), "manifest.idx");
+        final FTPClient ftpClient = mock(FTPClient.class);
+        when(ftpClient.printWorkingDirectory()).thenReturn(REMOTE_ROOT);
+        when(ftpClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        when(ftpClient.changeWorkingDirectory(ArgumentMatchers.anyString())).thenReturn(true);
+        when(ftpClient.hasFeature("MLST")).thenReturn(true);
+        when(ftpClient.mlistDir(ArgumentMatchers.anyString())).thenReturn(new FTPFile[0]);
+        when(ftpClient.rename(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).thenReturn(true);
+        when(ftpClient.storeFile(ArgumentMatchers.eq("index.html"), ArgumentMatchers.any(InputStream.class)))
+                .thenReturn(true);
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "site", "", false, false, false);
+        final BapFtpTransfer staged = new BapFtpTransfer("**/*", "site", "", false, false, false);
+        staged.setStageAndSwap(true);
+
+        publish(ftpClient, manifestFile, transfer, local);
+        Files.write(local.toPath(), "two".getBytes(StandardCharsets.UTF_8));
+        publish(ftpClient, manifestFile, staged, local);
+        Files.write(local.toPath(), "one".getBytes(StandardCharsets.UTF_8));
+        publish(ftpClient, manifestFile, transfer, local);
+        verify(ftpClient, times(3))
+                .storeFile(ArgumentMatchers.eq("index.html"), ArgumentMatchers.any(InputStream.class));
+    }
+
+    private static void publish(
+            final FTPClient ftpClient, final File manifestFile, final BapFtpTransfer transfer, final File local)
+            throws IOException {
+        final BapFtpClient client = new BapFtpClient(ftpClient, null);
+        client.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        client.setUploadManifestFile(manifestFile);
+        client.beginTransfers(transfer);
+        client.changeToInitialDirectory();
+        client.changeDirectory("site");
+        try (InputStream content = new FileInputStream(local)) {
+            client.transferFile(transfer, new FilePath(local), content);
+        }
+        client.endTransfers(transfer);
+        client.disconnect();
+    }
+
+    @Test
+    public void testDeleteTreeMovesTreeAsideForBackgroundDeletion() throws Exception {
+        final String site = REMOTE_ROOT + "/site";
+        final File queueFile = new File(tmp.getRoot(), "deletions.xml");
+        final BapFtpDeletionQueue queue = new BapFtpDeletionQueue(queueFile) {
+            @Override
+            void submit(final Entry entry) {}
+        };
+        bapFtpClient.setDeletionQueue(queue, "my-host");
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(site)).andReturn(true);
+        expect(mockFTPClient.rename(eq(site), startsWith(site + ".deleting-"))).andReturn(true);
+        expect(mockFTPClient.makeDirectory(site)).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
+        assertTrue(bapFtpClient.changeDirectory("site"));
+        bapFtpClient.deleteTree();
+        mockControl.verify();
+        assertEquals(1, queue.getPending().size());
+        assertEquals("my-host", queue.getPending().get(0).getHostName());
+        assertTrue(queue.getPending().get(0).getPath().startsWith(site + ".deleting-"));
+
+        final BapFtpDeletionQueue restarted = new BapFtpDeletionQueue(queueFile) {
+            @Override
+            void submit(final Entry entry) {}
+        };
+        restarted.start();
+        assertEquals(queue.getPending(), restarted.getPending());
+    }
+
+    @Test
+    public void testDeletionIsDroppedAfterTheMaximumNumberOfAttempts() throws Exception {
+        final File queueFile = new File(tmp.getRoot(), "deletions.xml");
+        final BapFtpDeletionQueue queue = new BapFtpDeletionQueue(queueFile) {
+            @Override
+            void submit(final Entry entry) {}
+        };
+        queue.add("my-host", "/pub/site.deleting-1");
+        final BapFtpDeletionQueue.Entry entry = queue.getPending().get(0);
+        for (int i = 1; i < BapFtpDeletionQueue.MAX_ATTEMPTS; i++) queue.retryLater(entry, IO_EXCEPTION);
+        assertEquals(1, queue.getPending().size());
+
+        final BapFtpDeletionQueue restarted = new BapFtpDeletionQueue(queueFile) {
+            @Override
+            void submit(final Entry entry) {}
+        };
+        restarted.start();
+        assertEquals(BapFtpDeletionQueue.MAX_ATTEMPTS - 1, restarted.getPending().get(0).getFailures());
+
+        queue.retryLater(entry, IO_EXCEPTION);
+        assertTrue(queue.getPending().isEmpty());
+    }
+
+    @Test
+    public void testPruneDatedDirectoriesKeepsNewestDirectories() throws Exception {
+        final String builds = REMOTE_ROOT + "/builds";
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir(builds))
+                .andReturn(new FTPFile[] {
+                    createRemoteDirectory("20240101"),
+                    createRemoteDirectory("20240105"),
+                    createRemoteDirectory("20240104"),
+                    createRemoteDirectory("2024010"),
+                    createRemoteDirectory("latest"),
+                    createRemoteDirectory("20240103")
+                });
+        for (String expired : new String[] {"/20240103", "/20240101"}) {
+            mockFTPClient.setListHiddenFiles(true);
+            expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+            expect(mockFTPClient.mlistDir(builds + expired)).andReturn(new FTPFile[0]);
+            expect(mockFTPClient.removeDirectory(builds + expired)).andReturn(true);
+        }
+        mockControl.replay();
+        bapFtpClient.pruneDatedDirectories("'builds/'yyyyMMdd", "builds/20240105", 2, 0);
+        mockControl.verify();
+    }
+
+    @Test
+    public void testPruneDatedDirectoriesWithSlashesAroundThePattern() throws Exception {
+        final String builds = REMOTE_ROOT + "/builds";
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir(builds))
+                .andReturn(new FTPFile[] {createRemoteDirectory("20240105"), createRemoteDirectory("20240101")});
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir(builds + "/20240101")).andReturn(new FTPFile[0]);
+        expect(mockFTPClient.removeDirectory(builds + "/20240101")).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.pruneDatedDirectories("'/builds/'yyyyMMdd'/'", "builds/20240105", 1, 0);
+        mockControl.verify();
+    }
+
+    private static FTPFile createRemoteDirectory(final String name) {
+        final FTPFile directory = new FTPFile();
+        directory.setName(name);
+        directory.setType(FTPFile.DIRECTORY_TYPE);
+        return directory;
+    }
+
+    @Test
+    public void testTransferFileResumesPartialUploadOnRetry() throws Exception {
+        final BPBuildInfo buildInfo = new BPBuildInfo(TaskListener.NULL, "", new FilePath(new File("")), null, null);
+        final BapFtpClient client = new BapFtpClient(mockFTPClient, buildInfo);
+        client.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        final File local = createLocalFile("big.bin", "0123456789");
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        final InputStream firstAttempt = mockControl.createMock(InputStream.class);
+        try (InputStream retry = new FileInputStream(local)) {
+            expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+            expect(mockFTPClient.storeFile(eq("big.bin"), same(firstAttempt))).andThrow(IO_EXCEPTION);
+            expect(mockFTPClient.hasFeature("REST", "STREAM")).andReturn(true);
+            expect(mockFTPClient.getSize("big.bin")).andReturn("4");
+            mockFTPClient.setRestartOffset(4);
+            expect(mockFTPClient.storeFile(eq("big.bin"), same(retry))).andReturn(true);
+            mockControl.replay();
+            client.changeToInitialDirectory();
+            try {
+                client.transferFile(transfer, new FilePath(local), firstAttempt);
+                fail();
+            } catch (IOException ioe) {
+                assertSame(IO_EXCEPTION, ioe);
+            }
+            client.transferFile(transfer, new FilePath(local), retry);
+            mockControl.verify();
+            assertEquals('4', retry.read());
+        }
+    }
+
+    @Test
+    public void testTransferFileAsciiEndsBareLineFeedsWithCarriageReturns() throws Exception {
+        final File local = createLocalFile("notes.txt", "one\ntwo\r\nthree\rfour\n\n");
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", true, false, false);
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.storeFileStream("notes.txt")).andReturn(wire);
+        expect(mockFTPClient.completePendingCommand()).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
+        try (InputStream content = new FileInputStream(local)) {
+            bapFtpClient.transferFile(transfer, new FilePath(local), content);
+        }
+        mockControl.verify();
+        assertEquals("one\r\ntwo\r\nthree\rfour\r\n\r\n", wire.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testAsciiOutputStreamKeepsCarriageReturnsAcrossWrites() throws Exception {
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (OutputStream ascii = new BapFtpAsciiOutputStream(wire)) {
+            ascii.write("a\r".getBytes(StandardCharsets.US_ASCII));
+            ascii.write("\nb\n".getBytes(StandardCharsets.US_ASCII));
+            ascii.write('\n');
+            ascii.write('\r');
+            ascii.write("\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals("a\r\nb\r\n\r\n\r\n", wire.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testAutoTransferTypeSendsTypeOnlyWhenItChanges() throws Exception {
+        final File one = createLocalFile("one.txt", "one\n");
+        final File two = createLocalFile("two.txt", "two\n");
+        final File image = tmp.newFile("image.bin");
+        Files.write(image.toPath(), new byte[] {'\n', 0, '\n'});
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        transfer.setAutoTransferType(true);
+        final ByteArrayOutputStream wireOne = new ByteArrayOutputStream();
+        final ByteArrayOutputStream wireTwo = new ByteArrayOutputStream();
+        final ByteArrayOutputStream wireImage = new ByteArrayOutputStream();
+        expect(mockFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.sendCommand("TYPE", "A")).andReturn(FTPReply.COMMAND_OK);
+        expect(mockFTPClient.storeFileStream("one.txt")).andReturn(wireOne);
+        expect(mockFTPClient.completePendingCommand()).andReturn(true);
+        expect(mockFTPClient.storeFileStream("two.txt")).andReturn(wireTwo);
+        expect(mockFTPClient.completePendingCommand()).andReturn(true);
+        expect(mockFTPClient.sendCommand("TYPE", "I")).andReturn(FTPReply.COMMAND_OK);
+        expect(mockFTPClient.storeFile(eq("image.bin"), isA(InputStream.class))).andAnswer(() -> {
+            ((InputStream) getCurrentArguments()[1]).transferTo(wireImage);
+            return true;
+        });
+        mockControl.replay();
+        bapFtpClient.beginTransfers(transfer);
+        bapFtpClient.changeToInitialDirectory();
+        for (File local : new File[] {one, two, image}) {
+            try (InputStream content = new FileInputStream(local)) {
+                bapFtpClient.transferFile(transfer, new FilePath(local), content);
+            }
+        }
+        mockControl.verify();
+        assertEquals("one\r\n", wireOne.toString(StandardCharsets.US_ASCII));
+        assertEquals("two\r\n", wireTwo.toString(StandardCharsets.US_ASCII));
+        assertArrayEquals(new byte[] {'\n', 0, '\n'}, wireImage.toByteArray());
+    }
+
+    @Test
+    public void testAutoTransferTypeUsesTheAsciiExtensionsWhenListed() throws Exception {
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        transfer.setAutoTransferType(true);
+        transfer.setAsciiExtensions("*.TXT, .html css");
+        assertTrue(BapFtpTransferType.hasAsciiExtensions(transfer));
+        assertTrue(BapFtpTransferType.hasAsciiExtension(transfer, "readme.txt"));
+        assertTrue(BapFtpTransferType.hasAsciiExtension(transfer, "index.html"));
+        assertTrue(BapFtpTransferType.hasAsciiExtension(transfer, "site.CSS"));
+        assertFalse(BapFtpTransferType.hasAsciiExtension(transfer, "image.png"));
+        assertFalse(BapFtpTransferType.hasAsciiExtension(transfer, "Makefile"));
+    }
+
+    @Test
+    public void testTransferFileDeflatesDataInModeZ() throws Exception {
+        final File local = createLocalFile("index.html", "<html><html><html><html><html><html><html><html>");
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        bapFtpClient.setModeZ(Deflater.BEST_COMPRESSION);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.hasFeature("MODE", "Z")).andReturn(true);
+        expect(mockFTPClient.sendCommand("MODE", "Z")).andReturn(FTPReply.COMMAND_OK);
+        expect(mockFTPClient.storeFileStream("index.html")).andReturn(wire);
+        expect(mockFTPClient.completePendingCommand()).andReturn(true);
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.sendCommand("MODE", "S")).andReturn(FTPReply.COMMAND_OK);
+        expect(mockFTPClient.mlistDir(REMOTE_ROOT)).andReturn(new FTPFile[0]);
+        mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
+        try (InputStream content = new FileInputStream(local)) {
+            bapFtpClient.transferFile(transfer, new FilePath(local), content);
+        }
+        bapFtpClient.deleteTree();
+        mockControl.verify();
+        assertTrue(wire.size() < local.length());
+        try (InputStream inflated = new InflaterInputStream(new ByteArrayInputStream(wire.toByteArray()))) {
+            assertEquals(
+                    "<html><html><html><html><html><html><html><html>",
+                    new String(inflated.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testTransferFilesStreamsTransferSetIntoOneArchive() throws Exception {
+        final File one = createLocalFile("one.txt", "one");
+        final File two = createLocalFile("two.txt", "two");
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", true, false, false);
+        transfer.setArchiveName("site.zip");
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        expect(mockFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).andReturn(true);
+        expect(mockFTPClient.printWorkingDirectory()).andReturn(REMOTE_ROOT);
+        expect(mockFTPClient.storeFileStream(REMOTE_ROOT + "/site.zip")).andReturn(wire);
+        expect(mockFTPClient.completePendingCommand()).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.beginTransfers(transfer);
+        bapFtpClient.changeToInitialDirectory();
+        assertTrue(bapFtpClient.makeDirectory("docs"));
+        assertTrue(bapFtpClient.changeDirectory("docs"));
+        try (InputStream content = new FileInputStream(one)) {
+            bapFtpClient.transferFile(transfer, new FilePath(one), content);
+        }
+        bapFtpClient.changeToInitialDirectory();
+        try (InputStream content = new FileInputStream(two)) {
+            bapFtpClient.transferFile(transfer, new FilePath(two), content);
+        }
+        bapFtpClient.endTransfers(transfer);
+        mockControl.verify();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(wire.toByteArray()))) {
+            assertEquals("docs/one.txt", zip.getNextEntry().getName());
+            assertEquals("one", new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            assertEquals("two.txt", zip.getNextEntry().getName());
+            assertEquals("two", new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            assertNull(zip.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testTransferFileSkipsFilesStoredByAnEarlierAttempt() throws Exception {
+        final BapFtpPublishJournal journal = new BapFtpPublishJournal();
+        final TransferFileArgs args = createTestArgs();
+        final BapFtpClient retry = new BapFtpClient(mockFTPClient, null);
+        retry.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        bapFtpClient.setPublishJournal(journal, journal.startAttempt());
+        retry.setPublishJournal(journal, journal.startAttempt());
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.storeFile(eq(args.filePath.getName()), same(args.inputStream)))
+                .andReturn(true)
+                .times(2);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
+        bapFtpClient.transferFile(args.bapFtpTransfer, args.filePath, args.inputStream);
+        bapFtpClient.transferFile(args.bapFtpTransfer, args.filePath, args.inputStream);
+        retry.changeToInitialDirectory();
+        retry.transferFile(args.bapFtpTransfer, args.filePath, args.inputStream);
+        mockControl.verify();
+    }
+
+    @Test
+    public void testTransferFileStoresAgainFilesOfATreeDeletedByALaterAttempt() throws Exception {
+        final BapFtpPublishJournal journal = new BapFtpPublishJournal();
+        final TransferFileArgs args = createTestArgs();
+        final BapFtpClient retry = new BapFtpClient(mockFTPClient, null);
+        retry.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        bapFtpClient.setPublishJournal(journal, journal.startAttempt());
+        retry.setPublishJournal(journal, journal.startAttempt());
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.storeFile(eq(args.filePath.getName()), same(args.inputStream)))
+                .andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir(REMOTE_ROOT)).andReturn(new FTPFile[0]);
+        expect(mockFTPClient.storeFile(eq(args.filePath.getName()), same(args.inputStream)))
+                .andReturn(true);
+        mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
+        bapFtpClient.transferFile(args.bapFtpTransfer, args.filePath, args.inputStream);
+        retry.changeToInitialDirectory();
+        retry.deleteTree();
+        retry.transferFile(args.bapFtpTransfer, args.filePath, args.inputStream);
+        mockControl.verify();
+    }
+
+    @Test
+    public void testTransferFileSkipsUnchangedFiles() throws Exception {
+        final File unchanged = createLocalFile("unchanged.txt", "same");
+        final File changed = createLocalFile("changed.txt", "different");
+        final Calendar published = Calendar.getInstance();
+        published.setTimeInMillis(unchanged.lastModified() + 1000);
+        final FTPFile remoteUnchanged = createRemoteFile("unchanged.txt", 4, published);
+        final FTPFile remoteChanged = createRemoteFile("changed.txt", 4, published);
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        transfer.setSkipUnchanged(true);
+        final SimpleDateFormat mfmt = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ENGLISH);
+        mfmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final InputStream inputStream = mockControl.createMock(InputStream.class);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir()).andReturn(new FTPFile[] {remoteUnchanged, remoteChanged});
+        expect(mockFTPClient.storeFile(eq("changed.txt"), same(inputStream))).andReturn(true);
+        expect(mockFTPClient.hasFeature("MFMT")).andReturn(true);
+        expect(mockFTPClient.setModificationTime("changed.txt", mfmt.format(new Date(changed.lastModified()))))
+                .andReturn(true);
+        mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
+        bapFtpClient.transferFile(transfer, new FilePath(unchanged), inputStream);
+        bapFtpClient.transferFile(transfer, new FilePath(changed), inputStream);
+        mockControl.verify();
+    }
+
+    @Test
+    public void testMirrorDeletesRemoteFilesThatAreNoLongerPublished() throws Exception {
+        final File unchanged = createLocalFile("unchanged.txt", "same");
+        final Calendar published = Calendar.getInstance();
+        published.setTimeInMillis(unchanged.lastModified() + 1000);
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        transfer.setMirror(true);
+        expect(mockFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).andReturn(true);
+        expect(mockFTPClient.printWorkingDirectory()).andReturn(REMOTE_ROOT);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir())
+                .andReturn(new FTPFile[] {
+                    createRemoteFile("unchanged.txt", 4, published),
+                    createRemoteFile("stale.txt", 5, published),
+                    createRemoteDirectory("old")
+                });
+        expect(mockFTPClient.deleteFile(REMOTE_ROOT + "/stale.txt")).andReturn(true);
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir(REMOTE_ROOT + "/old")).andReturn(new FTPFile[0]);
+        expect(mockFTPClient.removeDirectory(REMOTE_ROOT + "/old")).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.beginTransfers(transfer);
+        bapFtpClient.changeToInitialDirectory();
+        bapFtpClient.transferFile(transfer, new FilePath(unchanged), null);
+        bapFtpClient.endTransfers(transfer);
+        mockControl.verify();
+    }
+
     @Test
     public void testDisconnectDoesNothingIfNotConnected() {
         expect(mockFTPClient.isConnected()).andReturn(false);
@@ -412,100 +969,380 @@ public class BapFtpClientTest {
 
     @Test
     public void testDeleteTreeDeletesFiles() throws Exception {
-        mockFTPClient.setListHiddenFiles(true);
         final FTPListParseEngine mockListEngine = mockControl.createMock(FTPListParseEngine.class);
-        expect(mockFTPClient.hasFeature("MLST")).andReturn(false);
-        expect(mockFTPClient.initiateListParsing()).andReturn(mockListEngine);
-        expectDeleteFiles(mockListEngine, "file1", "file2", "anotherOne");
+        expectStartDeleteTree(false);
+        expect(mockFTPClient.initiateListParsing(REMOTE_ROOT)).andReturn(mockListEngine);
+        expectListPage(mockListEngine, REMOTE_ROOT, "file1", "file2");
+        expectListPage(mockListEngine, REMOTE_ROOT, "anotherOne");
         expect(mockListEngine.hasNext()).andReturn(false);
         mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
         bapFtpClient.deleteTree();
         mockControl.verify();
     }
 
     @Test
     public void testDeleteTreeDeletesFilesMLST() throws Exception {
-        mockFTPClient.setListHiddenFiles(true);
         final FTPFile[] files = new FTPFile[3];
         final String[] fileNames = new String[] {"file1", "file2", "anotherOne"};
         for (int i = 0; i < files.length; i++) {
             files[i] = mock(FTPFile.class);
             when(files[i].getName()).thenReturn(fileNames[i]);
         }
-        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
-        expect(mockFTPClient.mlistDir()).andReturn(files);
+        expectStartDeleteTree(true);
+        expect(mockFTPClient.mlistDir(REMOTE_ROOT)).andReturn(files);
         for (String fileName : fileNames) {
-            expect(mockFTPClient.deleteFile(fileName)).andReturn(true);
+            expect(mockFTPClient.deleteFile(REMOTE_ROOT + "/" + fileName)).andReturn(true);
         }
         mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
         bapFtpClient.deleteTree();
         mockControl.verify();
     }
 
     @Test
     public void testDeleteTreeIgnoresCurrentDirAndParentDirEntries() throws Exception {
-        mockFTPClient.setListHiddenFiles(true);
         final FTPListParseEngine mockListEngine = mockControl.createMock(FTPListParseEngine.class);
-        expect(mockFTPClient.hasFeature("MLST")).andReturn(false);
-        expect(mockFTPClient.initiateListParsing()).andReturn(mockListEngine);
-        expectFtpFile(mockListEngine, ".");
-        expectFtpFile(mockListEngine, "..");
-        expectDeleteFiles(mockListEngine, "file1", "file2", "anotherOne");
+        expectStartDeleteTree(false);
+        expect(mockFTPClient.initiateListParsing(REMOTE_ROOT)).andReturn(mockListEngine);
+        expectListPage(mockListEngine, REMOTE_ROOT, ".", "..", "file1", "file2", "anotherOne");
         expect(mockListEngine.hasNext()).andReturn(false);
         mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
         bapFtpClient.deleteTree();
         mockControl.verify();
     }
 
     @Test
-    public void testDeleteTreeDeletesDirectoryWithFiles() throws Exception {
-        mockFTPClient.setListHiddenFiles(true);
+    public void testDeleteTreeDeletesDirectoriesAfterTheirContents() throws Exception {
+        final String directory = REMOTE_ROOT + "/directory";
+        final String subDirectory = directory + "/sub";
         final FTPListParseEngine mockListEngine = mockControl.createMock(FTPListParseEngine.class);
-        expect(mockFTPClient.hasFeature("MLST")).andReturn(false);
-        expect(mockFTPClient.initiateListParsing()).andReturn(mockListEngine);
-        final String dirname = "directory";
-        expectDirectory(mockListEngine, dirname);
-        expect(mockFTPClient.changeWorkingDirectory(dirname)).andReturn(true);
+        expectStartDeleteTree(false);
+        expect(mockFTPClient.initiateListParsing(REMOTE_ROOT)).andReturn(mockListEngine);
+        expectListPage(mockListEngine, REMOTE_ROOT, "directory/", "file1");
+        expect(mockListEngine.hasNext()).andReturn(false);
 
         final FTPListParseEngine mockListEngineSubDir = mockControl.createMock(FTPListParseEngine.class);
-        expect(mockFTPClient.hasFeature("MLST")).andReturn(false);
-        expect(mockFTPClient.initiateListParsing()).andReturn(mockListEngineSubDir);
-        expectDeleteFiles(mockListEngineSubDir, "file1", "file2", "anotherOne");
+        expect(mockFTPClient.initiateListParsing(directory)).andReturn(mockListEngineSubDir);
+        expectListPage(mockListEngineSubDir, directory, "file2", "sub/");
         expect(mockListEngineSubDir.hasNext()).andReturn(false);
 
-        expect(mockFTPClient.changeToParentDirectory()).andReturn(true);
-        expect(mockFTPClient.removeDirectory(dirname)).andReturn(true);
-        expect(mockListEngine.hasNext()).andReturn(false);
+        final FTPListParseEngine mockListEngineSubSubDir = mockControl.createMock(FTPListParseEngine.class);
+        expect(mockFTPClient.initiateListParsing(subDirectory)).andReturn(mockListEngineSubSubDir);
+        expect(mockListEngineSubSubDir.hasNext()).andReturn(false);
+
+        expect(mockFTPClient.removeDirectory(subDirectory)).andReturn(true);
+        expect(mockFTPClient.removeDirectory(directory)).andReturn(true);
         mockControl.replay();
+        bapFtpClient.changeToInitialDirectory();
         bapFtpClient.deleteTree();
         mockControl.verify();
     }
 
-    private void expectDeleteFiles(final FTPListParseEngine mockListEngine, final String... filenames)
+    private void expectStartDeleteTree(final boolean mlst) throws Exception {
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(mlst);
+    }
+
+    /**
+     * Names that end with a slash are directories.
+     */
+    private void expectListPage(final FTPListParseEngine mockListEngine, final String directory, final String... names)
             throws Exception {
-        for (final String filename : filenames) {
-            expectFile(mockListEngine, filename);
-            expect(mockFTPClient.deleteFile(filename)).andReturn(true);
+        expect(mockListEngine.hasNext()).andReturn(true);
+        final FTPFile[] page = new FTPFile[names.length];
+        for (int i = 0; i < names.length; i++) page[i] = mockControl.createMock(FTPFile.class);
+        expect(mockListEngine.getNext(BapFtpClient.LIST_PAGE_SIZE)).andReturn(page);
+        for (int i = 0; i < names.length; i++) {
+            final boolean isDirectory = names[i].endsWith("/");
+            final String name = isDirectory ? names[i].substring(0, names[i].length() - 1) : names[i];
+            expect(page[i].getName()).andReturn(name);
+            if (".".equals(name) || "..".equals(name)) continue;
+            expect(page[i].isDirectory()).andReturn(isDirectory);
+            if (!isDirectory) expect(mockFTPClient.deleteFile(directory + "/" + name)).andReturn(true);
         }
     }
 
-    private FTPFile expectFile(final FTPListParseEngine mockListEngine, final String filename) {
-        final FTPFile file = expectFtpFile(mockListEngine, filename);
-        expect(file.isDirectory()).andReturn(false);
-        return file;
+    @Test
+    public void testFanOutReadsEachFileOnceAndStoresItOnEveryHost() throws Exception {
+        final File one = createLocalFile("one.txt", "1".repeat(100));
+        final File two = createLocalFile("two.txt", "2".repeat(100));
+        final BapFtpTransfer transfer = new BapFtpTransfer("**/*", "", "", false, false, false);
+        final BapFtpChannelClient targetFTPClient = mock(BapFtpChannelClient.class);
+        final BapFtpClient target = new BapFtpClient(targetFTPClient, null);
+        target.setAbsoluteRemoteRoot("/mirror");
+        final BapFtpHostConfiguration targetConfig = mock(BapFtpHostConfiguration.class);
+        when(targetConfig.getName()).thenReturn("mirror");
+        when(targetConfig.createClient(null, false)).thenReturn(target);
+        when(targetFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        when(targetFTPClient.changeWorkingDirectory("/mirror")).thenReturn(true);
+        final ByteArrayOutputStream targetWire = new ByteArrayOutputStream();
+        when(targetFTPClient.storeFile(ArgumentMatchers.anyString(), ArgumentMatchers.any(InputStream.class)))
+                .thenAnswer(invocation -> {
+                    targetWire.write(invocation.<InputStream>getArgument(1).readAllBytes());
+                    return true;
+                });
+        bapFtpClient.setFanOut(new BapFtpFanOut(List.of(targetConfig), null, 4));
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        expect(mockFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory(REMOTE_ROOT)).andReturn(true);
+        expect(mockFTPClient.storeFile(eq("one.txt"), isA(InputStream.class))).andAnswer(() -> store(wire));
+        expect(mockFTPClient.storeFile(eq("two.txt"), isA(InputStream.class))).andAnswer(() -> store(wire));
+        mockControl.replay();
+        bapFtpClient.beginTransfers(transfer);
+        bapFtpClient.changeToInitialDirectory();
+        for (File file : new File[] {one, two}) {
+            try (InputStream content = new FileInputStream(file)) {
+                bapFtpClient.transferFile(transfer, new FilePath(file), content);
+            }
+        }
+        bapFtpClient.endTransfers(transfer);
+        mockControl.verify();
+        final String expected = "1".repeat(100) + "2".repeat(100);
+        assertEquals(expected, wire.toString(StandardCharsets.UTF_8));
+        assertEquals(expected, targetWire.toString(StandardCharsets.UTF_8));
+        verify(targetFTPClient, never())
+                .storeFile(ArgumentMatchers.anyString(), ArgumentMatchers.any(FileChannel.class));
     }
 
-    private FTPFile expectDirectory(final FTPListParseEngine mockListEngine, final String dirname) {
-        final FTPFile dir = expectFtpFile(mockListEngine, dirname);
-        expect(dir.isDirectory()).andReturn(true);
-        return dir;
+    @Test
+    public void testFailureOfTheLastTransferSetRunInParallelIsThrownWhenClosedQuietly() throws Exception {
+        final File local = createLocalFile("data.txt", "data");
+        final BapFtpTransfer parallel = new BapFtpTransfer("**/*", "", "", false, false, false);
+        parallel.setRunInParallel(true);
+        final FTPClient laneFTPClient = mock(FTPClient.class);
+        final BapFtpClient lane = new BapFtpClient(laneFTPClient, null);
+        lane.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        final BapFtpHostConfiguration hostConfig = mock(BapFtpHostConfiguration.class);
+        when(hostConfig.getName()).thenReturn("host");
+        when(hostConfig.createClient(null, true, 1)).thenReturn(lane);
+        when(laneFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        when(laneFTPClient.changeWorkingDirectory(REMOTE_ROOT)).thenReturn(true);
+        when(laneFTPClient.storeFile(ArgumentMatchers.eq("data.txt"), ArgumentMatchers.any(InputStream.class)))
+                .thenReturn(false);
+        bapFtpClient.setConcurrentTransfers(new BapFtpConcurrentTransfers(hostConfig, null, 1));
+        expect(mockFTPClient.isConnected()).andReturn(false);
+        mockControl.replay();
+        bapFtpClient.beginTransfers(parallel);
+        assertTrue(bapFtpClient.changeToInitialDirectory());
+        try (InputStream content = new FileInputStream(local)) {
+            bapFtpClient.transferFile(parallel, new FilePath(local), content);
+        }
+        bapFtpClient.endTransfers(parallel);
+        try {
+            bapFtpClient.disconnectQuietly();
+            fail();
+        } catch (BapPublisherException bpe) {
+            final String laneMessage = bpe.getCause().getLocalizedMessage();
+            assertEquals(Messages.exception_concurrentTransferFailed(laneMessage), bpe.getMessage());
+        }
+        mockControl.verify();
     }
 
-    private FTPFile expectFtpFile(final FTPListParseEngine mockListEngine, final String filename) {
-        expect(mockListEngine.hasNext()).andReturn(true);
-        final FTPFile file = mockControl.createMock(FTPFile.class);
-        expect(mockListEngine.getNext(1)).andReturn(new FTPFile[] {file});
-        expect(file.getName()).andReturn(filename);
+    @Test
+    public void testTransferSetRunInParallelUsesItsOwnSessionAndIsAwaitedByTheNextTransferSet() throws Exception {
+        final File local = createLocalFile("data.txt", "data");
+        final BapFtpTransfer parallel = new BapFtpTransfer("**/*", "", "", false, false, false);
+        parallel.setRunInParallel(true);
+        final BapFtpTransfer index = new BapFtpTransfer("index.html", "", "", false, false, false);
+        final FTPClient laneFTPClient = mock(FTPClient.class);
+        final BapFtpClient lane = new BapFtpClient(laneFTPClient, null);
+        lane.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        final BapFtpHostConfiguration hostConfig = mock(BapFtpHostConfiguration.class);
+        when(hostConfig.getName()).thenReturn("host");
+        when(hostConfig.createClient(null, true, 1)).thenReturn(lane);
+        when(laneFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        when(laneFTPClient.changeWorkingDirectory(REMOTE_ROOT)).thenReturn(true);
+        final ByteArrayOutputStream laneWire = new ByteArrayOutputStream();
+        when(laneFTPClient.storeFile(ArgumentMatchers.eq("data.txt"), ArgumentMatchers.any(InputStream.class)))
+                .thenAnswer(invocation -> {
+                    laneWire.write(invocation.<InputStream>getArgument(1).readAllBytes());
+                    return true;
+                });
+        bapFtpClient.setConcurrentTransfers(new BapFtpConcurrentTransfers(hostConfig, null, 1));
+        expect(mockFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).andReturn(true);
+        mockControl.replay();
+        bapFtpClient.beginTransfers(parallel);
+        assertTrue(bapFtpClient.changeToInitialDirectory());
+        try (InputStream content = new FileInputStream(local)) {
+            bapFtpClient.transferFile(parallel, new FilePath(local), content);
+        }
+        bapFtpClient.endTransfers(parallel);
+        bapFtpClient.beginTransfers(index);
+        mockControl.verify();
+        assertEquals("data", laneWire.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSegmentedUploadReassemblesTheFileOnTheServer() throws Exception {
+        final byte[] bytes = new byte[100_000];
+        new Random(1).nextBytes(bytes);
+        final File local = tmp.newFile("image.iso");
+        Files.write(local.toPath(), bytes);
+        final byte[] remote = new byte[bytes.length];
+        final BapFtpHostConfiguration hostConfig = mock(BapFtpHostConfiguration.class);
+        when(hostConfig.createSession(null))
+                .thenAnswer(invocation -> new BapFtpClient(createStandInFTPClient(remote), null));
+        final FTPClient standInFTPClient = createStandInFTPClient(remote);
+        when(standInFTPClient.changeWorkingDirectory(REMOTE_ROOT)).thenReturn(true);
+        when(standInFTPClient.hasFeature("REST", "STREAM")).thenReturn(true);
+        when(standInFTPClient.getSize("image.iso")).thenReturn(String.valueOf(bytes.length));
+        final BapFtpClient client = new BapFtpClient(standInFTPClient, null);
+        client.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        client.setSegmentedUpload(new BapFtpSegmentedUpload(hostConfig, null, 1000, 4));
+        client.changeToInitialDirectory();
+        try (InputStream content = new FileInputStream(local)) {
+            client.transferFile(new BapFtpTransfer("**/*", "", "", false, false, false), new FilePath(local), content);
+        }
+        client.disconnect();
+        assertArrayEquals(bytes, remote);
+        verify(standInFTPClient).storeFileStream("image.iso");
+    }
+
+    @Test
+    public void testSegmentsAreCancelledAndAwaitedWhenTheFirstSegmentFails() throws Exception {
+        final byte[] bytes = new byte[100_000];
+        final File local = tmp.newFile("image.iso");
+        Files.write(local.toPath(), bytes);
+        final AtomicInteger storing = new AtomicInteger();
+        final BapFtpHostConfiguration hostConfig = mock(BapFtpHostConfiguration.class);
+        when(hostConfig.createSession(null)).thenAnswer(invocation -> {
+            final FTPClient segmentFTPClient = createStandInFTPClient(new byte[bytes.length]);
+            when(segmentFTPClient.storeFileStream(ArgumentMatchers.anyString())).thenAnswer(store -> {
+                storing.incrementAndGet();
+                try {
+                    Thread.sleep(60_000);
+                    return null;
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                } finally {
+                    storing.decrementAndGet();
+                }
+            });
+            return new BapFtpClient(segmentFTPClient, null);
+        });
+        final FTPClient standInFTPClient = createStandInFTPClient(new byte[bytes.length]);
+        when(standInFTPClient.changeWorkingDirectory(REMOTE_ROOT)).thenReturn(true);
+        when(standInFTPClient.hasFeature("REST", "STREAM")).thenReturn(true);
+        final BapFtpClient client = new BapFtpClient(standInFTPClient, null);
+        client.setAbsoluteRemoteRoot(REMOTE_ROOT);
+        client.setSegmentedUpload(new BapFtpSegmentedUpload(hostConfig, null, 1000, 4));
+        client.changeToInitialDirectory();
+        final InputStream content = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw IO_EXCEPTION;
+            }
+        };
+        try {
+            client.transferFile(new BapFtpTransfer("**/*", "", "", false, false, false), new FilePath(local), content);
+            fail();
+        } catch (IOException ioe) {
+            assertSame(IO_EXCEPTION, ioe);
+        }
+        assertEquals(0, storing.get());
+    }
+
+    @Test
+    public void testLocalBinaryFileIsSentFromItsChannel() throws Exception {
+        final byte[] bytes = new byte[300_000];
+        new Random(2).nextBytes(bytes);
+        final File local = tmp.newFile("image.iso");
+        Files.write(local.toPath(), bytes);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final BapFtpChannelClient channelClient = mock(BapFtpChannelClient.class);
+            when(channelClient.changeWorkingDirectory(REMOTE_ROOT)).thenReturn(true);
+            when(channelClient.openStoreConnection("image.iso"))
+                    .thenAnswer(invocation -> SocketChannel.open(server.getLocalAddress()).socket());
+            when(channelClient.storeFile(ArgumentMatchers.eq("image.iso"), ArgumentMatchers.any(FileChannel.class)))
+                    .thenCallRealMethod();
+            when(channelClient.completePendingCommand()).thenReturn(true);
+            final FutureTask<byte[]> receiving = new FutureTask<>(() -> {
+                try (SocketChannel accepted = server.accept()) {
+                    return Channels.newInputStream(accepted).readAllBytes();
+                }
+            });
+            new Thread(receiving).start();
+            final BapFtpClient client = new BapFtpClient(channelClient, null);
+            client.setAbsoluteRemoteRoot(REMOTE_ROOT);
+            client.changeToInitialDirectory();
+            client.transferFile(
+                    new BapFtpTransfer("**/*", "", "", false, false, false),
+                    new FilePath(local),
+                    new ByteArrayInputStream(new byte[0]));
+            assertArrayEquals(bytes, receiving.get());
+        }
+    }
+
+    @Test
+    public void testChannelStoreFailsWhenTheServerStopsReadingForTheDataTimeout() throws Exception {
+        final File local = tmp.newFile("image.iso");
+        Files.write(local.toPath(), new byte[32 * 1024 * 1024]);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final BapFtpChannelClient channelClient = new BapFtpChannelClient() {
+                @Override
+                Socket openStoreConnection(final String remote) throws IOException {
+                    return SocketChannel.open(server.getLocalAddress()).socket();
+                }
+            };
+            channelClient.setDataTimeout(500);
+            try (FileChannel source = FileChannel.open(local.toPath())) {
+                channelClient.storeFile("image.iso", source);
+                fail();
+            } catch (SocketTimeoutException ste) {
+                assertEquals(Messages.exception_dataTimeout(500), ste.getMessage());
+            }
+        }
+    }
+
+    /**
+     * An FTP client whose STOR writes into the bytes of the remote file at the REST offset, without truncating it.
+     */
+    private static FTPClient createStandInFTPClient(final byte[] remote) throws IOException {
+        final FTPClient ftpClient = mock(FTPClient.class);
+        final long[] restartOffset = new long[1];
+        when(ftpClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        doAnswer(invocation -> {
+                    restartOffset[0] = invocation.getArgument(0);
+                    return null;
+                })
+                .when(ftpClient)
+                .setRestartOffset(ArgumentMatchers.anyLong());
+        when(ftpClient.storeFileStream(ArgumentMatchers.anyString())).thenAnswer(invocation -> new OutputStream() {
+            private int position = (int) restartOffset[0];
+
+            @Override
+            public void write(final int b) {
+                synchronized (remote) {
+                    remote[position++] = (byte) b;
+                }
+            }
+        });
+        when(ftpClient.completePendingCommand()).thenReturn(true);
+        return ftpClient;
+    }
+
+    private static boolean store(final ByteArrayOutputStream wire) throws IOException {
+        wire.write(((InputStream) getCurrentArguments()[1]).readAllBytes());
+        return true;
+    }
+
+    private File createLocalFile(final String name, final String content) throws IOException {
+        final File file = tmp.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static FTPFile createRemoteFile(final String name, final long size, final Calendar timestamp) {
+        final FTPFile file = new FTPFile();
+        file.setName(name);
+        file.setType(FTPFile.FILE_TYPE);
+        file.setSize(size);
+        file.setTimestamp(timestamp);
         return file;
     }
 
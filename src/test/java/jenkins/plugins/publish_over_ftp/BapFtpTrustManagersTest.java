@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.publish_over_ftp;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.KeyStore;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.X509TrustManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BapFtpTrustManagersTest {
+
+    private static final String TRUST_STORE = "javax.net.ssl.trustStore";
+    private static final String TRUST_STORE_PASSWORD = "javax.net.ssl.trustStorePassword";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static final long MODIFIED = 1_600_000_000_000L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String trustStore;
+    private String trustStorePassword;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        trustStore = System.getProperty(TRUST_STORE);
+        trustStorePassword = System.getProperty(TRUST_STORE_PASSWORD);
+        file = tmp.newFile("truststore.p12");
+        writeTrustStore(0);
+        System.setProperty(TRUST_STORE, file.getAbsolutePath());
+        System.setProperty(TRUST_STORE_PASSWORD, new String(PASSWORD));
+        BapFtpTrustManagers.clear();
+    }
+
+    @After
+    public void tearDown() {
+        restore(TRUST_STORE, trustStore);
+        restore(TRUST_STORE_PASSWORD, trustStorePassword);
+        BapFtpTrustManagers.clear();
+    }
+
+    @Test
+    public void testTrustManagerAndSslContextAreReused() throws Exception {
+        assertSame(BapFtpTrustManagers.get(null), BapFtpTrustManagers.get(null));
+        assertSame(BapFtpTrustManagers.getSslContext(null), BapFtpTrustManagers.getSslContext(null));
+    }
+
+    @Test
+    public void testTrustManagerIsRebuiltWhenTheTrustStoreIsModified() throws Exception {
+        final X509TrustManager trustManager = BapFtpTrustManagers.get(null);
+        assertSame(trustManager, BapFtpTrustManagers.get(null));
+        file.setLastModified(MODIFIED + 1000);
+        assertNotSame(trustManager, BapFtpTrustManagers.get(null));
+    }
+
+    @Test
+    public void testTrustManagerIsRebuiltWhenTheTrustStoreChangesLength() throws Exception {
+        final X509TrustManager trustManager = BapFtpTrustManagers.get(null);
+        final long length = file.length();
+        writeTrustStore(1);
+        assertNotEquals(length, file.length());
+        assertNotSame(trustManager, BapFtpTrustManagers.get(null));
+    }
+
+    @Test
+    public void testTrustManagerIsRebuiltWhenCleared() throws Exception {
+        final X509TrustManager trustManager = BapFtpTrustManagers.get(null);
+        BapFtpTrustManagers.clear();
+        assertNotSame(trustManager, BapFtpTrustManagers.get(null));
+    }
+
+    /**
+     * The trust store is always given the same modification time, so that only its length tells the versions apart.
+     */
+    private void writeTrustStore(final int secretKeys) throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, PASSWORD);
+        for (int i = 0; i < secretKeys; i++) {
+            keyStore.setEntry(
+                    "key" + i,
+                    new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[16], "AES")),
+                    new KeyStore.PasswordProtection(PASSWORD));
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            keyStore.store(out, PASSWORD);
+        }
+        file.setLastModified(MODIFIED);
+    }
+
+    private static void restore(final String name, final String value) {
+        if (value == null) {
+            System.clearProperty(name);
+        } else {
+            System.setProperty(name, value);
+        }
+    }
+}
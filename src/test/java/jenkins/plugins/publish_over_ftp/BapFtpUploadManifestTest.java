@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.publish_over_ftp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BapFtpUploadManifestTest {
+
+    private static final byte[] DIGEST = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    private static final byte[] OTHER_DIGEST = {16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(tmp.getRoot(), "manifest.idx");
+    }
+
+    @Test
+    public void testEntriesArePersistedWhenClosed() throws Exception {
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            manifest.put("/root/a.txt", 10, DIGEST, 1);
+            assertTrue(manifest.isUnchanged("/root/a.txt", 10, DIGEST));
+        }
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            assertTrue(manifest.isUnchanged("/root/a.txt", 10, DIGEST));
+            assertFalse(manifest.isUnchanged("/root/a.txt", 11, DIGEST));
+            assertFalse(manifest.isUnchanged("/root/a.txt", 10, OTHER_DIGEST));
+            assertFalse(manifest.isUnchanged("/root/b.txt", 10, DIGEST));
+        }
+    }
+
+    @Test
+    public void testRemovedEntryIsChanged() throws Exception {
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            manifest.put("/root/a.txt", 10, DIGEST, 1);
+            manifest.remove("/root/a.txt");
+            assertFalse(manifest.isUnchanged("/root/a.txt", 10, DIGEST));
+            manifest.put("/root/a.txt", 10, DIGEST, 2);
+            assertTrue(manifest.isUnchanged("/root/a.txt", 10, DIGEST));
+        }
+    }
+
+    @Test
+    public void testGrowKeepsAllEntries() throws Exception {
+        final int entries = 10000;
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            for (int i = 0; i < entries; i++) manifest.put("/root/" + i, i, DIGEST, i);
+        }
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            for (int i = 0; i < entries; i++) assertTrue(manifest.isUnchanged("/root/" + i, i, DIGEST));
+        }
+    }
+
+    @Test
+    public void testOnlyOnePublishCanOpenManifest() throws Exception {
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            assertNotNull(manifest);
+            assertNull(BapFtpUploadManifest.open(file));
+        }
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            assertNotNull(manifest);
+        }
+    }
+
+    @Test
+    public void testInvalidatedManifestIsDiscarded() throws Exception {
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            manifest.put("/root/a.txt", 10, DIGEST, 1);
+            BapFtpUploadManifest.invalidate(file);
+        }
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            assertFalse(manifest.isUnchanged("/root/a.txt", 10, DIGEST));
+        }
+    }
+
+    @Test
+    public void testClearRemovesAllEntries() throws Exception {
+        try (BapFtpUploadManifest manifest = BapFtpUploadManifest.open(file)) {
+            manifest.put("/root/a.txt", 10, DIGEST, 1);
+            manifest.clear();
+            assertFalse(manifest.isUnchanged("/root/a.txt", 10, DIGEST));
+        }
+    }
+}
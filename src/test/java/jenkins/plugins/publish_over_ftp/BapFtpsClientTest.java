@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.publish_over_ftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import org.apache.commons.net.SocketClient;
+import org.junit.Test;
+
+public class BapFtpsClientTest {
+
+    private static final int DATA_PORT = 2121;
+
+    @Test
+    public void testCacheKeyIsTheLowerCaseHostAndPort() {
+        assertEquals("10.0.0.1:2121", BapFtpsClient.cacheKey("10.0.0.1", DATA_PORT));
+        assertEquals("fe80:0:0:0:0:0:0:1:21", BapFtpsClient.cacheKey("FE80:0:0:0:0:0:0:1", 21));
+    }
+
+    @Test
+    public void testControlSessionIsCachedUnderTheAddressOfTheDataConnection() throws Exception {
+        final HostPortCacheContext context = new HostPortCacheContext();
+        final SSLSession session = createSession(context);
+        final BapFtpsClient client = createClient(session);
+        client._prepareDataSocket_(createDataSocket());
+        assertEquals(Map.of("10.0.0.1:2121", session), context.sessionHostPortCache.entries);
+        assertEquals(1, client.getDataConnections());
+        assertEquals(1, client.getOfferedDataConnections());
+    }
+
+    @Test
+    public void testDataConnectionIsNotOfferedTheSessionWhenTheCacheCannotBeReached() throws Exception {
+        final BapFtpsClient client = createClient(createSession(mock(SSLSessionContext.class)));
+        client._prepareDataSocket_(createDataSocket());
+        client._prepareDataSocket_(createDataSocket());
+        assertEquals(2, client.getDataConnections());
+        assertEquals(0, client.getOfferedDataConnections());
+    }
+
+    @Test
+    public void testSessionIsNotCachedWhenReuseIsOff() throws Exception {
+        final HostPortCacheContext context = new HostPortCacheContext();
+        final BapFtpsClient client = new BapFtpsClient(false, null, false);
+        setControlSocket(client, createSession(context));
+        client._prepareDataSocket_(createDataSocket());
+        assertTrue(context.sessionHostPortCache.entries.isEmpty());
+        assertEquals(0, client.getDataConnections());
+    }
+
+    private static SSLSession createSession(final SSLSessionContext context) {
+        final SSLSession session = mock(SSLSession.class);
+        when(session.isValid()).thenReturn(true);
+        when(session.getSessionContext()).thenReturn(context);
+        return session;
+    }
+
+    private static BapFtpsClient createClient(final SSLSession session) throws Exception {
+        final BapFtpsClient client = new BapFtpsClient(false, null, true);
+        setControlSocket(client, session);
+        return client;
+    }
+
+    private static void setControlSocket(final BapFtpsClient client, final SSLSession session) throws Exception {
+        final SSLSocket control = mock(SSLSocket.class);
+        when(control.getSession()).thenReturn(session);
+        final Field socket = SocketClient.class.getDeclaredField("_socket_");
+        socket.setAccessible(true);
+        socket.set(client, control);
+    }
+
+    /**
+     * The address is given a host name, so that a key made from the host name would show up in the cache.
+     */
+    private static Socket createDataSocket() throws Exception {
+        final SSLSocket data = mock(SSLSocket.class);
+        when(data.getInetAddress()).thenReturn(InetAddress.getByAddress("ftp.example.com", new byte[] {10, 0, 0, 1}));
+        when(data.getPort()).thenReturn(DATA_PORT);
+        return data;
+    }
+
+    /**
+     * Stands in for the session context of the JSSE client, which keeps its sessions by host and port in a field of
+     * this name.
+     */
+    private static final class HostPortCacheContext implements SSLSessionContext {
+
+        private final HostPortCache sessionHostPortCache = new HostPortCache();
+
+        @Override
+        public SSLSession getSession(final byte[] sessionId) {
+            return null;
+        }
+
+        @Override
+        public Enumeration<byte[]> getIds() {
+            return null;
+        }
+
+        @Override
+        public void setSessionTimeout(final int seconds) {}
+
+        @Override
+        public int getSessionTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setSessionCacheSize(final int size) {}
+
+        @Override
+        public int getSessionCacheSize() {
+            return 0;
+        }
+    }
+
+    private static final class HostPortCache {
+
+        private final Map<Object, Object> entries = new HashMap<>();
+
+        private void put(final Object key, final Object value) {
+            entries.put(key, value);
+        }
+    }
+}
@@ -27,13 +27,25 @@ package jenkins.plugins.publish_over_ftp;
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import hudson.FilePath;
 import hudson.model.TaskListener;
+import hudson.util.FormValidation;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over_ftp.descriptor.BapFtpHostConfigurationDescriptor;
+import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPReply;
 import org.easymock.classextension.EasyMock;
 import org.easymock.classextension.IMocksControl;
@@ -42,6 +54,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
 
 @SuppressWarnings({"PMD.SignatureDeclareThrowsException", "PMD.TooManyMethods"})
@@ -50,6 +63,9 @@ public class BapHostConfigurationTest {
     @Rule
     public JenkinsRule j = new JenkinsRule();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @BeforeClass
     public static void before() {
         MySecretHelper.setSecretKey();
@@ -151,6 +167,147 @@ public class BapHostConfigurationTest {
         mockControl.verify();
     }
 
+    @Test
+    public void testBufferSizesAndTcpNoDelay() throws Exception {
+        final int bufferSize = 1048576;
+        final int sendBufferSize = 262144;
+        bapFtpHostConfiguration.setBufferSize(bufferSize);
+        bapFtpHostConfiguration.setSendBufferSize(sendBufferSize);
+        bapFtpHostConfiguration.setTcpNoDelay(true);
+        mockFTPClient.setDefaultTimeout(bapFtpHostConfiguration.getTimeout());
+        mockFTPClient.setDataTimeout(bapFtpHostConfiguration.getTimeout());
+        mockFTPClient.setBufferSize(bufferSize);
+        mockFTPClient.setSendBufferSize(sendBufferSize);
+        mockFTPClient.setSendDataSocketBufferSize(sendBufferSize);
+        mockFTPClient.connect(bapFtpHostConfiguration.getHostname(), bapFtpHostConfiguration.getPort());
+        mockFTPClient.setTcpNoDelay(true);
+        expect(mockFTPClient.getReplyCode()).andReturn(FTPReply.SERVICE_READY);
+        mockFTPClient.enterLocalPassiveMode();
+        expect(mockFTPClient.login(bapFtpHostConfiguration.getUsername(), bapFtpHostConfiguration.getPassword()))
+                .andReturn(true);
+        expect(mockFTPClient.printWorkingDirectory()).andReturn("/");
+        assertCreateSession();
+    }
+
+    @Test
+    public void testParallelConnectionsStoreFilesOverWorkerSessions() throws Exception {
+        final FTPClient workerFTPClient = mock(FTPClient.class);
+        when(workerFTPClient.getReplyCode()).thenReturn(FTPReply.SERVICE_READY);
+        when(workerFTPClient.login(anyString(), anyString())).thenReturn(true);
+        when(workerFTPClient.printWorkingDirectory()).thenReturn("/");
+        when(workerFTPClient.changeWorkingDirectory("/pub")).thenReturn(true);
+        when(workerFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        when(workerFTPClient.storeFile(eq("file.txt"), any(InputStream.class))).thenReturn(true);
+        bapFtpHostConfiguration = new BapFtpHostConfigurationWithMockFTPClient(mockFTPClient, workerFTPClient);
+        bapFtpHostConfiguration.setParallelConnections(2);
+        expectConnectAndLogin();
+        expect(mockFTPClient.printWorkingDirectory()).andReturn("/pub");
+        final BapFtpClient client = assertCreateSession();
+
+        final FilePath file = new FilePath(folder.newFile("file.txt"));
+        final BapFtpTransfer transfer = new BapFtpTransfer("*", "", "", false, false, false);
+        mockControl.reset();
+        expect(mockFTPClient.printWorkingDirectory()).andReturn("/pub");
+        expect(mockFTPClient.isConnected()).andReturn(false);
+        mockControl.replay();
+        client.transferFile(transfer, file, null);
+        client.endTransfers(transfer);
+        client.disconnect();
+        mockControl.verify();
+        verify(workerFTPClient).storeFile(eq("file.txt"), any(InputStream.class));
+    }
+
+    @Test
+    public void testParallelConnectionsStoreStagedFilesWithoutClearingTheStagingDirectory() throws Exception {
+        final FTPClient ftpClient = mock(FTPClient.class);
+        when(ftpClient.getReplyCode()).thenReturn(FTPReply.SERVICE_READY);
+        when(ftpClient.login(anyString(), anyString())).thenReturn(true);
+        when(ftpClient.printWorkingDirectory()).thenReturn("/pub");
+        when(ftpClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        when(ftpClient.changeWorkingDirectory(anyString())).thenReturn(true);
+        when(ftpClient.rename(anyString(), anyString())).thenReturn(true);
+        when(ftpClient.hasFeature("MLST")).thenReturn(true);
+        when(ftpClient.mlistDir(anyString())).thenReturn(new FTPFile[0]);
+        final FTPClient workerFTPClient = mock(FTPClient.class);
+        when(workerFTPClient.getReplyCode()).thenReturn(FTPReply.SERVICE_READY);
+        when(workerFTPClient.login(anyString(), anyString())).thenReturn(true);
+        when(workerFTPClient.printWorkingDirectory()).thenReturn("/");
+        when(workerFTPClient.changeWorkingDirectory(anyString())).thenReturn(true);
+        when(workerFTPClient.setFileType(FTP.BINARY_FILE_TYPE)).thenReturn(true);
+        when(workerFTPClient.storeFile(eq("file.txt"), any(InputStream.class))).thenReturn(true);
+        bapFtpHostConfiguration = new BapFtpHostConfigurationWithMockFTPClient(ftpClient, workerFTPClient);
+        bapFtpHostConfiguration.setParallelConnections(2);
+        final BapFtpClient client = bapFtpHostConfiguration.createClient(buildInfo);
+
+        final FilePath file = new FilePath(folder.newFile("file.txt"));
+        final BapFtpTransfer transfer = new BapFtpTransfer("*", "site", "", false, false, false);
+        transfer.setStageAndSwap(true);
+        client.beginTransfers(transfer);
+        client.changeToInitialDirectory();
+        client.changeDirectory("site");
+        client.transferFile(transfer, file, null);
+        client.endTransfers(transfer);
+        client.disconnect();
+        verify(ftpClient).removeDirectory("/pub/site.staging");
+        verify(workerFTPClient).changeWorkingDirectory("/pub/site.staging");
+        verify(workerFTPClient).storeFile(eq("file.txt"), any(InputStream.class));
+        verify(workerFTPClient, never()).removeDirectory(anyString());
+        verify(workerFTPClient, never()).mlistDir(anyString());
+        verify(workerFTPClient, never()).initiateListParsing(anyString());
+        verify(ftpClient).rename("/pub/site.staging", "/pub/site");
+    }
+
+    @Test
+    public void testParallelConnectionsDeleteFilesOverWorkerSessions() throws Exception {
+        final FTPClient workerFTPClient = mock(FTPClient.class);
+        when(workerFTPClient.getReplyCode()).thenReturn(FTPReply.SERVICE_READY);
+        when(workerFTPClient.login(anyString(), anyString())).thenReturn(true);
+        when(workerFTPClient.printWorkingDirectory()).thenReturn("/");
+        when(workerFTPClient.deleteFile("/pub/old.txt")).thenReturn(true);
+        bapFtpHostConfiguration = new BapFtpHostConfigurationWithMockFTPClient(mockFTPClient, workerFTPClient);
+        bapFtpHostConfiguration.setParallelConnections(2);
+        expectConnectAndLogin();
+        expect(mockFTPClient.printWorkingDirectory()).andReturn("/pub");
+        final BapFtpClient client = assertCreateSession();
+
+        final FTPFile old = new FTPFile();
+        old.setName("old.txt");
+        old.setType(FTPFile.FILE_TYPE);
+        mockControl.reset();
+        expect(mockFTPClient.printWorkingDirectory()).andReturn("/pub");
+        mockFTPClient.setListHiddenFiles(true);
+        expect(mockFTPClient.hasFeature("MLST")).andReturn(true);
+        expect(mockFTPClient.mlistDir("/pub")).andReturn(new FTPFile[] {old});
+        expect(mockFTPClient.isConnected()).andReturn(false);
+        mockControl.replay();
+        client.deleteTree();
+        client.disconnect();
+        mockControl.verify();
+        verify(workerFTPClient).deleteFile("/pub/old.txt");
+    }
+
+    @Test
+    public void testConnectionPoolReusesSessionAfterDisconnect() throws Exception {
+        bapFtpHostConfiguration.setUseConnectionPool(true);
+        expectConnectAndLogin();
+        expect(mockFTPClient.printWorkingDirectory()).andReturn("/pub");
+        final BapFtpClient client = assertCreateSession();
+
+        mockControl.reset();
+        expect(mockFTPClient.isConnected()).andReturn(true);
+        expect(mockFTPClient.getReplyCode()).andReturn(FTPReply.COMMAND_OK);
+        mockControl.replay();
+        client.disconnect();
+        mockControl.verify();
+
+        mockControl.reset();
+        expect(mockFTPClient.isConnected()).andReturn(true);
+        expect(mockFTPClient.sendNoOp()).andReturn(true);
+        expect(mockFTPClient.changeWorkingDirectory("/pub")).andReturn(true);
+        final BapFtpClient reused = assertCreateSession();
+        assertEquals("/pub", reused.getAbsoluteRemoteRoot());
+    }
+
     private void expectConnectAndLogin() throws Exception {
         mockFTPClient.setDefaultTimeout(bapFtpHostConfiguration.getTimeout());
         mockFTPClient.setDataTimeout(bapFtpHostConfiguration.getTimeout());
@@ -165,6 +322,44 @@ public class BapHostConfigurationTest {
                 .andReturn(true);
     }
 
+    @Test
+    public void testModeZCompressionLevelDefaultsToTheFormDefault() throws Exception {
+        final BapFtpHostConfigurationDescriptor descriptor =
+                j.jenkins.getDescriptorByType(BapFtpHostConfigurationDescriptor.class);
+        assertEquals(descriptor.getDefaultModeZCompressionLevel(), bapFtpHostConfiguration.getModeZCompressionLevel());
+    }
+
+    @Test
+    public void testModeZCompressionLevelIsValidFromZeroToNine() throws Exception {
+        final BapFtpHostConfigurationDescriptor descriptor =
+                j.jenkins.getDescriptorByType(BapFtpHostConfigurationDescriptor.class);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckModeZCompressionLevel("0").kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckModeZCompressionLevel("9").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckModeZCompressionLevel("10").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckModeZCompressionLevel("-1").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckModeZCompressionLevel("fast").kind);
+    }
+
+    @Test
+    public void testFanOutBufferSizeMustBePositive() throws Exception {
+        final BapFtpHostConfigurationDescriptor descriptor =
+                j.jenkins.getDescriptorByType(BapFtpHostConfigurationDescriptor.class);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckFanOutBufferSize("65536").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckFanOutBufferSize("0").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckFanOutBufferSize("-1").kind);
+    }
+
+    @Test
+    public void testUploadSegmentsAndSegmentThresholdMustBePositive() throws Exception {
+        final BapFtpHostConfigurationDescriptor descriptor =
+                j.jenkins.getDescriptorByType(BapFtpHostConfigurationDescriptor.class);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckUploadSegments("1").kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckUploadSegments("4").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckUploadSegments("0").kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckSegmentThreshold("1048576").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckSegmentThreshold("0").kind);
+    }
+
     private BapFtpClient assertCreateSession() throws IOException {
         mockControl.replay();
         final BapFtpClient client = bapFtpHostConfiguration.createClient(buildInfo);
@@ -179,8 +374,11 @@ public class BapHostConfigurationTest {
         private static final String TEST_USERNAME = "myTestUsername";
         private static final String TEST_PASSWORD = "myTestPassword";
         private final transient FTPClient ftpClient;
+        private final transient FTPClient workerFtpClient;
+        private transient boolean created;
 
-        BapFtpHostConfigurationWithMockFTPClient(final FTPClient ftpClient, final boolean disableMakeNestedDirs) {
+        BapFtpHostConfigurationWithMockFTPClient(
+                final FTPClient ftpClient, final FTPClient workerFtpClient, final boolean disableMakeNestedDirs) {
             super(
                     TEST_CFG_NAME,
                     TEST_HOSTNAME,
@@ -194,14 +392,25 @@ public class BapHostConfigurationTest {
                     disableMakeNestedDirs,
                     false);
             this.ftpClient = ftpClient;
+            this.workerFtpClient = workerFtpClient;
+        }
+
+        BapFtpHostConfigurationWithMockFTPClient(final FTPClient ftpClient, final boolean disableMakeNestedDirs) {
+            this(ftpClient, null, disableMakeNestedDirs);
+        }
+
+        BapFtpHostConfigurationWithMockFTPClient(final FTPClient ftpClient, final FTPClient workerFtpClient) {
+            this(ftpClient, workerFtpClient, false);
         }
 
         BapFtpHostConfigurationWithMockFTPClient(final FTPClient ftpClient) {
-            this(ftpClient, false);
+            this(ftpClient, null, false);
         }
 
         @Override
-        public FTPClient createFTPClient() {
+        public synchronized FTPClient createFTPClient() {
+            if (created && workerFtpClient != null) return workerFtpClient;
+            created = true;
             return ftpClient;
         }
 
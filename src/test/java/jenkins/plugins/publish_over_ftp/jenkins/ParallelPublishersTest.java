@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.publish_over_ftp.jenkins;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.publish_over_ftp.BapFtpHostConfiguration;
+import jenkins.plugins.publish_over_ftp.BapFtpPublisher;
+import jenkins.plugins.publish_over_ftp.BapFtpPublisherPlugin;
+import jenkins.plugins.publish_over_ftp.BapFtpTransfer;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+@SuppressWarnings("PMD.SignatureDeclareThrowsException")
+public class ParallelPublishersTest {
+
+    private static final String FILE_NAME = "file.txt";
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final FTPClient first = createFTPClient();
+    private final FTPClient second = createFTPClient();
+    private final FTPClient third = createFTPClient();
+    private FreeStyleProject project;
+
+    @Before
+    public void setUp() throws Exception {
+        new JenkinsTestHelper()
+                .setGlobalConfig(
+                        createHostConfig("first-host", first),
+                        createHostConfig("second-host", second),
+                        createHostConfig("third-host", third));
+        project = j.createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(
+                    final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
+                    throws InterruptedException, IOException {
+                build.getWorkspace().child(FILE_NAME).write("Helloooooo", "UTF-8");
+                return true;
+            }
+        });
+    }
+
+    @Test
+    public void testFailedPublisherMakesTheBuildUnstable() throws Exception {
+        when(second.storeFile(eq(FILE_NAME), any())).thenReturn(false);
+        addPlugin(true, false, "first-host", "second-host");
+        j.assertBuildStatus(Result.UNSTABLE, project.scheduleBuild2(0).get());
+        verify(first).storeFile(eq(FILE_NAME), any());
+    }
+
+    @Test
+    public void testFailedPublisherFailsTheBuildWhenFailOnError() throws Exception {
+        when(second.storeFile(eq(FILE_NAME), any())).thenReturn(false);
+        addPlugin(true, true, "first-host", "second-host");
+        j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+        verify(first).storeFile(eq(FILE_NAME), any());
+    }
+
+    @Test
+    public void testPublishersAfterAFailureAreSkippedUnlessContinueOnError() throws Exception {
+        when(first.storeFile(eq(FILE_NAME), any())).thenReturn(false);
+        when(second.storeFile(eq(FILE_NAME), any())).thenAnswer(invocation -> {
+            awaitLog("first-host");
+            return true;
+        });
+        addPlugin(false, false, "first-host", "second-host", "third-host");
+        j.assertBuildStatus(Result.UNSTABLE, project.scheduleBuild2(0).get());
+        verify(second).storeFile(eq(FILE_NAME), any());
+        verify(third, never()).storeFile(anyString(), any());
+    }
+
+    @Test
+    public void testPublishersRunTogetherAndLogInWholeSections() throws Exception {
+        final CountDownLatch bothStoring = new CountDownLatch(2);
+        when(first.storeFile(eq(FILE_NAME), any())).thenAnswer(invocation -> {
+            bothStoring.countDown();
+            return bothStoring.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        });
+        when(second.storeFile(eq(FILE_NAME), any())).thenAnswer(invocation -> {
+            bothStoring.countDown();
+            return bothStoring.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        });
+        addPlugin(false, false, "first-host", "second-host");
+        final FreeStyleBuild build = j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+        final String log = JenkinsRule.getLog(build);
+        assertSection(log, "first-host", "second-host");
+        assertSection(log, "second-host", "first-host");
+    }
+
+    private void addPlugin(final boolean continueOnError, final boolean failOnError, final String... configNames) {
+        final ArrayList<BapFtpPublisher> publishers = new ArrayList<>();
+        for (String configName : configNames) {
+            final BapFtpTransfer transfer =
+                    new BapFtpTransfer(FILE_NAME, null, "", null, false, false, false, false, false, false, null);
+            publishers.add(new BapFtpPublisher(
+                    configName, false, new ArrayList<>(Collections.singletonList(transfer)), false, false, null, null,
+                    null));
+        }
+        final BapFtpPublisherPlugin plugin =
+                new BapFtpPublisherPlugin(publishers, continueOnError, failOnError, false, "master", null);
+        plugin.setParallelPublishers(2);
+        project.getPublishersList().add(plugin);
+    }
+
+    /**
+     * The log of a publisher is only copied into the build log once the publisher has finished, so the name of its
+     * configuration shows up when it is done.
+     */
+    private void awaitLog(final String text) throws Exception {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (!JenkinsRule.getLog(project.getLastBuild()).contains(text)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertSection(final String log, final String name, final String otherName) {
+        final int start = log.indexOf(name);
+        final int end = log.lastIndexOf(name);
+        assertTrue(start >= 0);
+        assertFalse(log.substring(start, end).contains(otherName));
+    }
+
+    private static FTPClient createFTPClient() {
+        final FTPClient ftpClient = mock(FTPClient.class);
+        try {
+            when(ftpClient.getReplyCode()).thenReturn(FTPReply.SERVICE_READY);
+            when(ftpClient.login(anyString(), anyString())).thenReturn(true);
+            when(ftpClient.changeWorkingDirectory(anyString())).thenReturn(true);
+            when(ftpClient.setFileType(anyInt())).thenReturn(true);
+            when(ftpClient.storeFile(eq(FILE_NAME), any())).thenReturn(true);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+        return ftpClient;
+    }
+
+    private static BapFtpHostConfiguration createHostConfig(final String name, final FTPClient ftpClient) {
+        return new BapFtpHostConfiguration(
+                name, "testHostname", "testUsername", "testPassword", "/testRemoteRoot", 21, 3000, false, null, false,
+                false) {
+            @Override
+            public FTPClient createFTPClient() {
+                return ftpClient;
+            }
+        };
+    }
+}